@@ -0,0 +1,183 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Measures how the cost of a write grows with the session, against the
+// Firestore emulator. Start it with "firebase emulators:start --only
+// firestore" before running the test; the Android emulator reaches the host
+// at 10.0.2.2.
+@RunWith(AndroidJUnit4.class)
+public class FirestoreSinkTest {
+    private static final int WRITES = 160;
+    private static final int BATCH_SIZE = 25;
+    // The writes averaged at the start and at the end of the session. The
+    // first few are skipped, as they pay for starting Firestore.
+    private static final int SAMPLE = 20;
+
+    private static UploadThread uploadThread;
+
+    @BeforeClass
+    public static void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        if (FirebaseApp.getApps(context).isEmpty()) {
+            FirebaseApp.initializeApp(context, new FirebaseOptions.Builder()
+                    .setProjectId("demo-background-geolocation")
+                    .setApplicationId("1:0:android:0")
+                    .setApiKey("demo")
+                    .build());
+            FirebaseFirestore.getInstance().useEmulator("10.0.2.2", 8080);
+        }
+        uploadThread = new UploadThread();
+    }
+
+    @Test
+    public void chunkWritesStayFlat() throws Exception {
+        long[] millis = writeSession("chunks");
+        long first = average(millis, SAMPLE);
+        long last = average(millis, WRITES - SAMPLE);
+        Log.i("FirestoreSinkTest", "chunks: first " + first + "ms, last " + last + "ms");
+        // Allow for noise, but not for growth with the session.
+        assertTrue("chunk writes grew from " + first + "ms to " + last + "ms", last < first * 2 + 20);
+    }
+
+    @Test
+    public void arrayWritesGrow() throws Exception {
+        long[] millis = writeSession("array");
+        long first = average(millis, SAMPLE);
+        long last = average(millis, WRITES - SAMPLE);
+        // Only reported, as a baseline for the chunked layout.
+        Log.i("FirestoreSinkTest", "array: first " + first + "ms, last " + last + "ms");
+    }
+
+    @Test
+    public void chunksSurviveARestart() throws Exception {
+        File directory = newDirectory();
+        Map<String, String> options = new HashMap<>();
+        options.put("storage", "chunks");
+        options.put("chunkDuration", "3600000");
+        options.put("chunkSize", "10");
+        String sessionId = "restart-" + System.currentTimeMillis();
+        long start = 3600000L * 1000;
+
+        FirestoreSink before = new FirestoreSink(uploadThread, directory, options);
+        TrackPoint point = null;
+        for (int i = 0; i < 15; i += 1) {
+            point = newPoint(start + i * 1000);
+            before.enqueue(sessionId, point);
+        }
+        assertEquals(String.format(Locale.US, "%013d-001", start), point.chunkId);
+
+        // A new sink for the same session carries on in the same chunk.
+        FirestoreSink after = new FirestoreSink(uploadThread, directory, options);
+        for (int i = 15; i < 21; i += 1) {
+            point = newPoint(start + i * 1000);
+            after.enqueue(sessionId, point);
+        }
+        assertEquals(String.format(Locale.US, "%013d-002", start), point.chunkId);
+        assertEquals(1, point.chunkPosition);
+        assertEquals(21, point.sessionPosition);
+    }
+
+    // Writes a session in batches, returning how long each write took.
+    private long[] writeSession(String storage) throws Exception {
+        final String sessionId = storage + "-" + System.currentTimeMillis();
+        Tasks.await(
+                FirebaseFirestore.getInstance().collection("sessions").document(sessionId)
+                        .set(Collections.<String, Object>emptyMap()),
+                30,
+                TimeUnit.SECONDS
+        );
+        Map<String, String> options = new HashMap<>();
+        options.put("storage", storage);
+        final FirestoreSink sink = new FirestoreSink(uploadThread, newDirectory(), options);
+        long[] millis = new long[WRITES];
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < WRITES; i += 1) {
+            final List<TrackPoint> points = new ArrayList<>();
+            for (int j = 0; j < BATCH_SIZE; j += 1) {
+                points.add(newPoint(timestamp));
+                timestamp += 1000;
+            }
+            final CountDownLatch done = new CountDownLatch(1);
+            final Exception[] failure = new Exception[1];
+            long startedAt = SystemClock.elapsedRealtime();
+            uploadThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (TrackPoint point : points) {
+                        sink.enqueue(sessionId, point);
+                    }
+                    sink.write(
+                            sessionId,
+                            points,
+                            new ArrayList<Map<String, Object>>(),
+                            new LocationSink.Callback() {
+                                @Override
+                                public void onSuccess() {
+                                    done.countDown();
+                                }
+
+                                @Override
+                                public void onFailure(Exception exception) {
+                                    failure[0] = exception;
+                                    done.countDown();
+                                }
+                            }
+                    );
+                }
+            });
+            assertTrue("write timed out", done.await(30, TimeUnit.SECONDS));
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            millis[i] = SystemClock.elapsedRealtime() - startedAt;
+        }
+        return millis;
+    }
+
+    private static long average(long[] millis, int from) {
+        long total = 0;
+        for (int i = from; i < from + SAMPLE; i += 1) {
+            total += millis[i];
+        }
+        return total / SAMPLE;
+    }
+
+    private static TrackPoint newPoint(long timestamp) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("w3w", "index.home.raft");
+        return new TrackPoint(timestamp, 51.5 + timestamp % 1000 * 1e-6, -0.1, fields);
+    }
+
+    private static File newDirectory() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        return new File(context.getCacheDir(), "chunks-" + System.nanoTime());
+    }
+}
@@ -0,0 +1,105 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Measures what the plugin's load() costs the main thread at app launch, with
+// Firestore started lazily on the upload thread, as it is now, and eagerly, as
+// the field initializer used to start it.
+//
+// Firestore is a singleton per FirebaseApp, so the eager path gets a fresh
+// app each time. The first eager run is the cold start, which also pays for
+// loading Firestore's classes; the rest are reported to show how much of that
+// is one-off. The lazy path is measured first, so that it does not benefit
+// from any classes the eager path loads. The figures are only reported, as
+// they depend on the device.
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final int RUNS = 5;
+    private static final String TAG = "StartupBenchmark";
+
+    @Test
+    public void compareLazyWithEagerFirestore() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final Context context = instrumentation.getTargetContext();
+        final List<UploadThread> threads = new ArrayList<>();
+        final long[] lazy = new long[RUNS];
+        final long[] eager = new long[RUNS];
+
+        for (int i = 0; i < RUNS; i += 1) {
+            final int run = i;
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    threads.add(load(context, "lazy-" + run));
+                    lazy[run] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+            });
+        }
+
+        for (int i = 0; i < RUNS; i += 1) {
+            final int run = i;
+            // Initializing the app is not timed, as the app does it either way.
+            final FirebaseApp app = FirebaseApp.initializeApp(context, new FirebaseOptions.Builder()
+                    .setProjectId("demo-background-geolocation")
+                    .setApplicationId("1:0:android:0")
+                    .setApiKey("demo")
+                    .build(), "startup-" + run);
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    FirebaseFirestore.getInstance(app);
+                    threads.add(load(context, "eager-" + run));
+                    eager[run] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+            });
+        }
+
+        for (int i = 0; i < RUNS; i += 1) {
+            Log.i(TAG, String.format(
+                    Locale.US,
+                    "run %d: lazy %.2f ms, eager %.2f ms",
+                    i,
+                    lazy[i] / 1e6,
+                    eager[i] / 1e6
+            ));
+        }
+        for (UploadThread thread : threads) {
+            thread.quit();
+        }
+    }
+
+    // What load() does to set up uploads, in a directory of its own.
+    private static UploadThread load(Context context, String name) {
+        File directory = new File(context.getCacheDir(), "startup-benchmark-" + name);
+        UploadThread uploadThread = new UploadThread();
+        Sinks sinks = new Sinks(uploadThread, directory);
+        final LocationWriter writer = new LocationWriter(new Outbox(directory), sinks, uploadThread);
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.recover();
+            }
+        });
+        return uploadThread;
+    }
+}
@@ -0,0 +1,149 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.app.Instrumentation;
+import android.os.StrictMode;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Drives the upload path the way the plugin does, from the main thread, with
+// StrictMode set to kill the process if the main thread touches the disk or
+// the network. The file sink and the outbox both write to disk, so any part
+// of the path which ran on the main thread would end the test run.
+@RunWith(AndroidJUnit4.class)
+public class UploadThreadTest {
+    private static final int POINTS = 50;
+
+    @Test
+    public void keepsTheUploadPathOffTheMainThread() throws Exception {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        File directory = new File(instrumentation.getTargetContext().getCacheDir(), "upload-thread-test");
+        delete(directory);
+        final UploadThread uploadThread = new UploadThread();
+        final LocationWriter writer = new LocationWriter(
+                new Outbox(directory),
+                new Sinks(uploadThread, directory),
+                uploadThread
+        );
+        final AtomicReference<StrictMode.ThreadPolicy> previous = new AtomicReference<>();
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                previous.set(StrictMode.getThreadPolicy());
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectAll()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+                uploadThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        writer.recover();
+                        writer.configureSink("a", "file", Collections.<String, String>emptyMap());
+                        writer.configure("a", 10, 1000);
+                        writer.prewarm("a");
+                    }
+                });
+                for (int i = 0; i < POINTS; i += 1) {
+                    final TrackPoint point = new TrackPoint(
+                            1700000000000L + i * 1000L,
+                            51.5 + i * 0.00001,
+                            -0.2,
+                            new HashMap<String, String>()
+                    );
+                    uploadThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            writer.write("a", point);
+                        }
+                    });
+                }
+                uploadThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Map<String, Object> event = new HashMap<>();
+                        event.put("type", "stop");
+                        writer.log("a", event);
+                        writer.patch("a", 1700000000000L, Collections.singletonMap("w3w", "filled.count.soap"));
+                        writer.flushAll();
+                    }
+                });
+                // The stats are read on the main thread.
+                writer.getStats();
+            }
+        });
+
+        // Every location, the event and the patch reach the file.
+        File track = new File(new File(directory, "tracks"), "a.jsonl");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countLines(track) < POINTS + 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(POINTS + 2, countLines(track));
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(previous.get());
+            }
+        });
+        final CountDownLatch closed = new CountDownLatch(1);
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.close(new Runnable() {
+                    @Override
+                    public void run() {
+                        closed.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(closed.await(15, TimeUnit.SECONDS));
+        uploadThread.quit();
+    }
+
+    private static int countLines(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            while (reader.readLine() != null) {
+                count += 1;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
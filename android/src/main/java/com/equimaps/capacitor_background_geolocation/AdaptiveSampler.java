@@ -0,0 +1,108 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Chooses a watcher's interval and displacement from how fast it is moving.
+// At a fixed interval a walker gets a dozen times as many fixes per kilometre
+// as a car, although a walked track needs no more detail than a driven one.
+// So the slower the device, the longer it waits between fixes, and the faster
+// it is, the further apart its fixes are allowed to be.
+//
+// The speed is smoothed over recent fixes, and inaccurate fixes are ignored.
+// So that a device hovering around a tier's boundary does not keep changing
+// its request, a tier is only entered once the speed is well past the
+// boundary, and only after the current tier has been held for a while.
+class AdaptiveSampler {
+    // The tiers, from slowest to fastest. A tier applies up to its maximum
+    // speed, in metres per second.
+    private static final float[] MAX_SPEEDS = {0.5f, 2.5f, 8, Float.MAX_VALUE};
+    private static final long[] INTERVALS = {10000, 5000, 2000, 1000};
+    private static final float[] DISPLACEMENTS = {10, 5, 10, 25};
+    private static final String[] NAMES = {"still", "walking", "cycling", "driving"};
+
+    // How far past a boundary the speed must be, as a fraction of it.
+    private static final float HYSTERESIS = 0.25f;
+    // How long a tier is held before it can change.
+    private static final long MIN_DWELL = 15000;
+    // Fixes less accurate than this say little about the speed.
+    private static final float MAX_ACCURACY = 50;
+    // The weight given to each new speed.
+    private static final float SMOOTHING = 0.3f;
+
+    private final long minInterval;
+    private final float minDisplacement;
+    private int tier = NAMES.length - 1;
+    private long tierSince = 0;
+    private float speed = -1;
+    private Location last = null;
+    private long changes = 0;
+
+    // The intervals and displacements of the tiers are never less than
+    // those given.
+    AdaptiveSampler(long minInterval, float minDisplacement) {
+        this.minInterval = minInterval;
+        this.minDisplacement = minDisplacement;
+    }
+
+    // Returns true if the location moves the device into another tier, in
+    // which case the request should be reissued. The sampler needs to see
+    // locations while the device is still, to notice that it has slowed
+    // down, so they must not be held back by a distance filter.
+    boolean update(Location location) {
+        if (!location.hasAccuracy() || location.getAccuracy() > MAX_ACCURACY) {
+            return false;
+        }
+        float sample;
+        if (location.hasSpeed()) {
+            sample = location.getSpeed();
+        } else if (last != null && location.getTime() > last.getTime()) {
+            sample = location.distanceTo(last) * 1000 / (location.getTime() - last.getTime());
+        } else {
+            last = location;
+            return false;
+        }
+        last = location;
+        return update(location.getTime(), sample);
+    }
+
+    // Takes a speed in metres per second, measured at the given time.
+    private boolean update(long time, float sample) {
+        speed = speed < 0 ? sample : speed + SMOOTHING * (sample - speed);
+        if (tierSince == 0) {
+            tierSince = time;
+        }
+        if (time - tierSince < MIN_DWELL) {
+            return false;
+        }
+        int next = tier;
+        while (next < NAMES.length - 1 && speed > MAX_SPEEDS[next] * (1 + HYSTERESIS)) {
+            next += 1;
+        }
+        while (next > 0 && speed < MAX_SPEEDS[next - 1] * (1 - HYSTERESIS)) {
+            next -= 1;
+        }
+        if (next == tier) {
+            return false;
+        }
+        tier = next;
+        tierSince = time;
+        changes += 1;
+        return true;
+    }
+
+    long getInterval() {
+        return Math.max(INTERVALS[tier], minInterval);
+    }
+
+    float getDisplacement() {
+        return Math.max(DISPLACEMENTS[tier], minDisplacement);
+    }
+
+    String getTier() {
+        return NAMES[tier];
+    }
+
+    long getChanges() {
+        return changes;
+    }
+}
@@ -1,15 +1,12 @@
 package com.equimaps.capacitor_background_geolocation;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
-import java.io.BufferedInputStream;
-import java.io.InputStream;
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
 
 import android.Manifest;
 import android.app.Notification;
@@ -27,15 +24,13 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.provider.Settings;
-import android.util.Log;
-import androidx.annotation.NonNull;
-import android.os.Handler;
-import android.os.Looper;
 
 
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Logger;
 import com.getcapacitor.NativePlugin;
@@ -43,23 +38,14 @@ import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.android.BuildConfig;
+import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FieldValue;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.GeoPoint;
-
 
 
 
@@ -74,11 +60,52 @@ import com.google.firebase.firestore.GeoPoint;
         permissionRequestCode = 28351
 )
 public class BackgroundGeolocation extends Plugin {
-    private FirebaseFirestore db = FirebaseFirestore.getInstance();
+    // The writer and the session logs are only used on the upload thread.
+    private UploadThread uploadThread;
+    private LocationWriter writer;
+    private Sinks sinks;
+    private SessionEvents events;
     private PluginCall callPendingPermissions = null;
     private Boolean stoppedWithoutPermissions = false;
-    private String sessionId = null;
-    private String w3wAPIKey = null;
+    // The watchers, by callback ID. They are added and removed on the
+    // plugin's thread, but their locations are handled on the main thread.
+    private final ConcurrentHashMap<String, WatcherState> watcherStates = new ConcurrentHashMap<>();
+    // The number of locations stored, and suppressed by each rule. They are
+    // counted on the main thread and read on the plugin's thread.
+    private final ConcurrentHashMap<String, AtomicLong> persistenceCounts = new ConcurrentHashMap<>();
+    // The number of times watchers were paused, and resumed by each trigger.
+    // They are counted on the main thread and read on the plugin's thread.
+    private final ConcurrentHashMap<String, AtomicLong> motionCounts = new ConcurrentHashMap<>();
+    private W3wEnricher w3wEnricher = null;
+    private GeocoderEnricher geocoderEnricher = null;
+    private final Enrichment enrichment = new Enrichment();
+
+    private static class LatestPending {
+        Location location = null;
+        long timestamp = 0;
+        boolean inFlight = false;
+    }
+
+    // What is kept for a watcher. It is filled in before it is added to
+    // watcherStates, and is not changed afterwards, apart from the pending
+    // location, which only the main thread touches.
+    private static class WatcherState {
+        // Whether the watcher receives its locations in batches.
+        boolean batched = false;
+        // The session the watcher's locations are stored under, or null if
+        // they are not stored.
+        String sessionId = null;
+        // Decides which of the watcher's locations are stored.
+        PersistenceGate gate = null;
+        // One of "inline", "deferred" or "latest".
+        String mode = null;
+        // The enrichers the watcher's locations are run through, and its own
+        // what3words client, if it uses one.
+        Enrichment.Selection enrichers = null;
+        W3wEnricher.Client w3wClient = null;
+        // The most recent location awaiting enrichment, in "latest" mode.
+        final LatestPending latest = new LatestPending();
+    }
 
     private void fetchLastLocation(PluginCall call) {
         try {
@@ -105,8 +132,22 @@ public class BackgroundGeolocation extends Plugin {
             return;
         }
         call.setKeepAlive(true);
-        sessionId = call.getString("sessionId");
-        w3wAPIKey = call.getString("w3wAPIKey");
+        WatcherState watcher = new WatcherState();
+        watcher.batched = call.getBoolean("batch", false);
+        String sessionId = call.getString("sessionId");
+        if (sessionId != null) {
+            watcher.sessionId = sessionId;
+            watcher.gate = new PersistenceGate(
+                    call.getFloat("persistDistance", 0f),
+                    call.getInt("persistInterval", 0),
+                    call.getFloat("persistMaxAccuracy", 0f),
+                    call.getFloat("persistHeadingChange", 0f)
+            );
+            watcher.mode = call.getString("w3wMode", "inline");
+            selectEnrichers(call, watcher);
+            configureSession(call, sessionId);
+        }
+        watcherStates.put(call.getCallbackId(), watcher);
         if (!hasRequiredPermissions()) {
             if (call.getBoolean("requestPermissions", true)) {
                 callPendingPermissions = call;
@@ -176,7 +217,15 @@ public class BackgroundGeolocation extends Plugin {
         service.addWatcher(
                 call.getCallbackId(),
                 backgroundNotification,
-                call.getFloat("distanceFilter", 0f)
+                call.getFloat("distanceFilter", 0f),
+                call.getInt("interval", 1000),
+                call.getInt("fastestInterval", 0),
+                call.getInt("maxWaitTime", 1000),
+                getPriority(call.getString("priority", "high")),
+                call.getInt("maxUpdateAge", 0),
+                call.getBoolean("adaptive", false),
+                call.getFloat("stationaryRadius", 0f),
+                call.getInt("stationaryWindow", 300000)
         );
     }
 
@@ -213,6 +262,15 @@ public class BackgroundGeolocation extends Plugin {
             return;
         }
         service.removeWatcher(callbackId);
+        WatcherState watcher = watcherStates.remove(callbackId);
+        if (watcher != null) {
+            if (watcher.w3wClient != null) {
+                w3wEnricher.close(watcher.w3wClient);
+            }
+            if (watcher.sessionId != null) {
+                stopSession(watcher.sessionId);
+            }
+        }
         PluginCall savedCall = bridge.getSavedCall(callbackId);
         if (savedCall != null) {
             savedCall.release(bridge);
@@ -220,6 +278,39 @@ public class BackgroundGeolocation extends Plugin {
         call.resolve();
     }
 
+    @PluginMethod()
+    public void getW3wStats(PluginCall call) {
+        call.resolve(w3wEnricher.getStats());
+    }
+
+    @PluginMethod()
+    public void getEnrichmentStats(PluginCall call) {
+        call.resolve(enrichment.getStats());
+    }
+
+    @PluginMethod()
+    public void getUploadStats(PluginCall call) {
+        call.resolve(writer.getStats());
+    }
+
+    @PluginMethod()
+    public void getPersistenceStats(PluginCall call) {
+        JSObject stats = new JSObject();
+        for (Map.Entry<String, AtomicLong> count : persistenceCounts.entrySet()) {
+            stats.put(count.getKey(), count.getValue().get());
+        }
+        call.resolve(stats);
+    }
+
+    @PluginMethod()
+    public void getMotionStats(PluginCall call) {
+        JSObject stats = new JSObject();
+        for (Map.Entry<String, AtomicLong> count : motionCounts.entrySet()) {
+            stats.put(count.getKey(), count.getValue().get());
+        }
+        call.resolve(stats);
+    }
+
     @PluginMethod()
     public void openSettings(PluginCall call) {
         Intent intent = new Intent(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
@@ -271,24 +362,84 @@ public class BackgroundGeolocation extends Plugin {
     // Sends messages to the service.
     private BackgroundGeolocationService.LocalBinder service = null;
 
-    // Receives messages from the service.
+    // Receives locations from the service. Each broadcast holds the locations
+    // from one update, and which of them each watcher is to be given.
     private class ServiceReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String id = intent.getStringExtra("id");
-            PluginCall call = bridge.getSavedCall(id);
-            if (call == null) {
+            ArrayList<Location> locations = intent.getParcelableArrayListExtra("locations");
+            Bundle deliveries = intent.getBundleExtra("watchers");
+            if (locations == null || deliveries == null) {
                 return;
             }
-            Location location = intent.getParcelableExtra("location");
-            if (location == null) {
-                if (BuildConfig.DEBUG) {
-                    call.error("No locations received");
+            for (String id : deliveries.keySet()) {
+                List<Location> delivered = new ArrayList<>();
+                for (int index : deliveries.getIntArray(id)) {
+                    delivered.add(locations.get(index));
                 }
-                return;
+                deliver(id, delivered);
             }
-            getW3Words(location, sessionId);
-            call.success(formatLocation(location));
+        }
+    }
+
+    private void deliver(String id, List<Location> locations) {
+        PluginCall call = bridge.getSavedCall(id);
+        WatcherState watcher = watcherStates.get(id);
+        if (call == null || watcher == null) {
+            return;
+        }
+        if (locations.isEmpty()) {
+            if (BuildConfig.DEBUG) {
+                call.error("No locations received");
+            }
+            return;
+        }
+        JSArray batch = new JSArray();
+        for (Location location : locations) {
+            if (watcher.sessionId != null) {
+                String suppressedBy = watcher.gate.check(location);
+                count(suppressedBy == null ? "accepted" : suppressedBy);
+                if (suppressedBy == null) {
+                    persistLocation(watcher, location);
+                }
+            }
+            if (watcher.batched) {
+                batch.put(formatLocation(location));
+            } else {
+                call.success(formatLocation(location));
+            }
+        }
+        if (watcher.batched) {
+            JSObject result = new JSObject();
+            result.put("locations", batch);
+            call.success(result);
+        }
+    }
+
+    private static int getPriority(String name) {
+        if (name.equals("balanced")) {
+            return LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+        }
+        if (name.equals("low")) {
+            return LocationRequest.PRIORITY_LOW_POWER;
+        }
+        if (name.equals("passive")) {
+            return LocationRequest.PRIORITY_NO_POWER;
+        }
+        return LocationRequest.PRIORITY_HIGH_ACCURACY;
+    }
+
+    // Receives the changes in a watcher's motion from the service.
+    private class MotionReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String trigger = intent.getStringExtra("trigger");
+            increment(motionCounts, trigger);
+            JSObject change = new JSObject();
+            change.put("id", intent.getStringExtra("id"));
+            change.put("stationary", intent.getBooleanExtra("stationary", false));
+            change.put("trigger", trigger);
+            notifyListeners("motionChange", change);
         }
     }
 
@@ -307,111 +458,211 @@ public class BackgroundGeolocation extends Plugin {
         return id == 0 ? fallback : getContext().getString(id);
     }
 
-    private void getW3Words(Location location, final String sessionId) {
-        // Build the URL
-        String urlString = "https://api.what3words.com/v3/convert-to-3wa?coordinates=" +
-                           location.getLatitude() + "," + location.getLongitude() + "&key=" + w3wAPIKey;
-        URL url;
-        try {
-            url = new URL(urlString);
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
+    private void count(String name) {
+        increment(persistenceCounts, name);
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counts, String name) {
+        AtomicLong count = counts.get(name);
+        if (count == null) {
+            AtomicLong added = new AtomicLong();
+            count = counts.putIfAbsent(name, added);
+            if (count == null) {
+                count = added;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    // Chooses the watcher's enrichers, opening its own what3words client if it
+    // uses one.
+    private void selectEnrichers(PluginCall call, WatcherState watcher) {
+        List<String> names = new ArrayList<>();
+        JSArray enricherNames = call.getArray("enrichers");
+        if (enricherNames == null) {
+            names.add("w3w");
+        } else {
+            for (int i = 0; i < enricherNames.length(); i += 1) {
+                names.add(enricherNames.optString(i));
+            }
+        }
+        Map<String, LocationEnricher> instances = new HashMap<>();
+        if (names.contains("w3w")) {
+            W3wEnricher.Client client = w3wEnricher.open(
+                    call.getString("w3wAPIKey"),
+                    call.getInt("w3wCacheSize", 256),
+                    call.getInt("w3wRequestsPerMinute", 60),
+                    call.getInt("w3wPrefetchHorizon", 0),
+                    call.getInt("w3wPrefetchPerMinute", 30)
+            );
+            watcher.w3wClient = client;
+            instances.put("w3w", client);
+        }
+        watcher.enrichers = enrichment.select(names, instances, call.getInt("enrichmentTimeout", 0));
+    }
+
+    private void persistLocation(WatcherState watcher, final Location location) {
+        final String sessionId = watcher.sessionId;
+        // Batched locations arrive some time after they were fixed, so they
+        // are stored with the time of the fix rather than of delivery.
+        final long timestamp = location.getTime() > 0
+                ? location.getTime()
+                : System.currentTimeMillis();
+        final Enrichment.Selection enrichers = watcher.enrichers;
+        if (watcher.mode.equals("inline")) {
+            // The location is written once it has been enriched.
+            enrichment.run(enrichers, location, new Enrichment.Callback() {
+                @Override
+                public void onResult(Map<String, String> fields) {
+                    store(sessionId, new TrackPoint(timestamp, location, fields));
+                }
+            });
             return;
         }
 
-        // Make the request in a new thread
-        new Thread(new Runnable() {
+        // The location is written straight away, and the fields which are not
+        // yet known are patched onto it when they arrive.
+        Map<String, String> fields = enrichment.peek(enrichers, location);
+        store(sessionId, new TrackPoint(timestamp, location, fields));
+        if (Enrichment.isComplete(fields)) {
+            return;
+        }
+        if (watcher.mode.equals("latest")) {
+            // Only the watcher's most recent location is enriched. Any
+            // locations which arrive in the meantime replace each other.
+            LatestPending latest = watcher.latest;
+            latest.location = location;
+            latest.timestamp = timestamp;
+            if (!latest.inFlight) {
+                resolveLatest(latest, enrichers, sessionId);
+            }
+        } else {
+            enrichment.run(enrichers, location, new Enrichment.Callback() {
+                @Override
+                public void onResult(Map<String, String> fields) {
+                    resolve(sessionId, timestamp, fields);
+                }
+            });
+        }
+    }
+
+    // The session's options are read here, but applied on the upload thread.
+    private void configureSession(PluginCall call, final String sessionId) {
+        final int batchSize = call.getInt("batchSize", 1);
+        final int batchInterval = call.getInt("batchInterval", 0);
+        final int queueCapacity = call.getInt("queueCapacity", 1000);
+        final String overflow = call.getString("overflow", "dropOldest");
+        final int maxInFlight = call.getInt("maxInFlight", 4);
+        final int gapThreshold = call.getInt("gapThreshold", 120000);
+        final int summaryInterval = call.getInt("summaryInterval", 300000);
+        final String sink = call.getString("sink", "firestore");
+        // The sink's options are kept as strings, see Sinks.
+        final Map<String, String> sinkOptions = new HashMap<>();
+        sinkOptions.put("format", call.getString("format", "map"));
+        sinkOptions.put("storage", call.getString("storage", "array"));
+        sinkOptions.put("chunkDuration", String.valueOf(call.getInt("chunkDuration", 600000)));
+        sinkOptions.put("chunkSize", String.valueOf(call.getInt("chunkSize", 500)));
+        sinkOptions.put("latency", String.valueOf(call.getInt("sinkLatency", 0)));
+        String sinkUrl = call.getString("sinkUrl");
+        if (sinkUrl != null) {
+            sinkOptions.put("url", sinkUrl);
+        }
+        JSObject sinkHeaders = call.getObject("sinkHeaders");
+        if (sinkHeaders != null) {
+            Iterator<String> names = sinkHeaders.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                sinkOptions.put("header." + name, sinkHeaders.optString(name));
+            }
+        }
+        uploadThread.post(new Runnable() {
             @Override
             public void run() {
-                HttpURLConnection urlConnection = null;
-                try {
-                    urlConnection = (HttpURLConnection) url.openConnection();
-                    urlConnection.setRequestMethod("GET");
-
-                    // Get the InputStream
-                    InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-
-                    // Convert InputStream to String
-                    String response = convertStreamToString(in);
-
-                    // Parse the JSON response
-					try {
-						JSONObject jsonResponse = new JSONObject(response);
-						String words = jsonResponse.optString("words", null);
-
-						// Call updateLocationsArray on the main thread
-						new Handler(Looper.getMainLooper()).post(new Runnable() {
-							@Override
-							public void run() {
-								updateLocationsArray(sessionId, location, words);
-							}
-						});
-					} catch (JSONException e) {
-						e.printStackTrace();
-						// Handle JSON parsing error
-					}
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    if (urlConnection != null) {
-                        urlConnection.disconnect();
-                    }
-                }
+                writer.configureSink(sessionId, sink, sinkOptions);
+                writer.prewarm(sessionId);
+                writer.configure(sessionId, batchSize, batchInterval);
+                writer.configureQueue(sessionId, queueCapacity, overflow, maxInFlight);
+                events.onStart(sessionId, gapThreshold, summaryInterval);
             }
-        }).start();
+        });
     }
 
-    private String convertStreamToString(InputStream is) {
-        Scanner s = new Scanner(is).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
+    private void stopSession(final String sessionId) {
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                events.onStop(sessionId);
+                writer.flush(sessionId);
+            }
+        });
     }
 
-    private void updateLocationsArray(String sessionId, Location location, String w3w) {
-        // Get the reference to the document you want to update
-        DocumentReference docRef = db.collection("sessions").document(sessionId);
-
-        // Create a new location map
-        Map<String, Object> newLocation = new HashMap<>();
-        newLocation.put("type", "tracked");
-        newLocation.put("timestamp", System.currentTimeMillis());
-        GeoPoint geopoint = new GeoPoint(location.getLatitude(), location.getLongitude());
-        newLocation.put("geopoint", geopoint);
-        newLocation.put("address", "Not available when tracking");
-        newLocation.put("w3w", w3w != null ? w3w : "Unable to ascertain");
-
-        // Add location to logs
-        Map<String, Object> newLog = new HashMap<>();
-        newLog.put("createdBy", "Guardian");
-        newLog.put("timestamp", System.currentTimeMillis());
-        newLog.put("text", "Latest location received: " + location.getLatitude() + ":" + location.getLongitude() + ". ///what3words: " + w3w);
+    private void store(final String sessionId, final TrackPoint point) {
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                events.onEnrichment(sessionId, point.fields);
+                events.onLocation(sessionId, point);
+                writer.write(sessionId, point);
+            }
+        });
+    }
 
-        // Create an updates hashmap
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("locations", FieldValue.arrayUnion(newLocation));
-        updates.put("logs", FieldValue.arrayUnion(newLog));
+    private void resolve(final String sessionId, final long timestamp, final Map<String, String> fields) {
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                events.onEnrichment(sessionId, fields);
+                writer.patch(sessionId, timestamp, fields);
+            }
+        });
+    }
 
-        // Update the document with the new location
-        docRef.update(updates)
-            .addOnSuccessListener(new OnSuccessListener<Void>() {
-                @Override
-                public void onSuccess(Void aVoid) {
-                    Log.d("Firestore", "DocumentSnapshot successfully updated!");
-                }
-            })
-            .addOnFailureListener(new OnFailureListener() {
-                @Override
-                public void onFailure(@NonNull Exception e) {
-                    Log.w("Firestore", "Error updating document", e);
+    private void resolveLatest(
+            final LatestPending latest,
+            final Enrichment.Selection enrichers,
+            final String sessionId
+    ) {
+        final long timestamp = latest.timestamp;
+        Location location = latest.location;
+        latest.location = null;
+        latest.inFlight = true;
+        enrichment.run(enrichers, location, new Enrichment.Callback() {
+            @Override
+            public void onResult(Map<String, String> fields) {
+                resolve(sessionId, timestamp, fields);
+                latest.inFlight = false;
+                if (latest.location != null) {
+                    resolveLatest(latest, enrichers, sessionId);
                 }
-            });
+            }
+        });
     }
 
-
     @Override
     public void load() {
         super.load();
 
+        // Locations which were not uploaded before the process died are
+        // picked up from the outbox.
+        uploadThread = new UploadThread();
+        sinks = new Sinks(uploadThread, getContext().getFilesDir());
+        writer = new LocationWriter(new Outbox(getContext().getFilesDir()), sinks, uploadThread);
+        events = new SessionEvents(writer);
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.recover();
+            }
+        });
+
+        w3wEnricher = new W3wEnricher(new File(getContext().getCacheDir(), "w3w-cache.bin"));
+        geocoderEnricher = new GeocoderEnricher(getContext());
+        // Each watcher brings its own what3words client.
+        enrichment.register("w3w", null, 4, 10000);
+        enrichment.register("geocoder", geocoderEnricher, 2, 5000);
+        enrichment.register("stub", new StubEnricher("w3w"), 64, 1000);
+
         // Android O requires a Notification Channel.
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationManager manager = (NotificationManager) getContext().getSystemService(
@@ -450,6 +701,10 @@ public class BackgroundGeolocation extends Plugin {
                 new ServiceReceiver(),
                 new IntentFilter(BackgroundGeolocationService.ACTION_BROADCAST)
         );
+        LocalBroadcastManager.getInstance(this.getContext()).registerReceiver(
+                new MotionReceiver(),
+                new IntentFilter(BackgroundGeolocationService.ACTION_MOTION)
+        );
     }
 
     @Override
@@ -477,6 +732,22 @@ public class BackgroundGeolocation extends Plugin {
         if (service != null) {
             service.stopService();
         }
+        // The final flush is sent on the sinks' executors, and calls back on
+        // the upload thread, so they are only shut down once it is done.
+        uploadThread.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.close(new Runnable() {
+                    @Override
+                    public void run() {
+                        sinks.shutdown();
+                        w3wEnricher.shutdown();
+                        uploadThread.quit();
+                    }
+                });
+            }
+        });
+        geocoderEnricher.shutdown();
         super.handleOnDestroy();
     }
 }
@@ -4,8 +4,16 @@ import android.app.Notification;
 import android.app.Service;
 import android.content.Intent;
 import android.location.Location;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.getcapacitor.Logger;
 import com.getcapacitor.android.BuildConfig;
@@ -16,7 +24,9 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -28,23 +38,63 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 // promotes itself to a foreground service, and location updates continue. When
 // the activity comes back to the foreground, the foreground service stops, and
 // the notification associated with that service is removed.
+//
+// The watchers share a single subscription to the fused location provider,
+// which is as strict as the strictest of them. Each watcher is then given only
+// the locations its own request asks for, so a watcher with a longer interval
+// or a larger distance filter than the others receives fewer locations.
+//
+// The watchers and the subscription belong to the main thread. The provider
+// and the motion sensor deliver to it, and requests from the activity, which
+// the plugin makes from its own thread, are posted to it.
 public class BackgroundGeolocationService extends Service {
     static final String ACTION_BROADCAST = (
             BackgroundGeolocationService.class.getPackage().getName() + ".broadcast"
     );
+    static final String ACTION_MOTION = (
+            BackgroundGeolocationService.class.getPackage().getName() + ".motion"
+    );
+    // The request of a stationary watcher.
+    private static final long PAUSED_INTERVAL = 60000;
     private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
 
     // Must be unique for this application.
     private static final int NOTIFICATION_ID = 28351;
 
     private class Watcher {
         public String id;
-        public FusedLocationProviderClient client;
         public LocationRequest locationRequest;
-        public LocationCallback locationCallback;
         public Notification backgroundNotification;
+        // Zero unless the watcher asked for a fastest interval.
+        public long fastestInterval;
+        public long maxUpdateAge;
+        // The last location given to the watcher.
+        public Location last;
+        // Adjusts the request to the watcher's speed, if it is adaptive.
+        public AdaptiveSampler sampler;
+        // Pauses the watcher while it is stationary, if it has a radius.
+        public StationaryDetector detector;
+        public LocationRequest pausedRequest;
+        public TriggerEventListener motionListener;
     }
     private HashSet<Watcher> watchers = new HashSet<Watcher>();
+    private FusedLocationProviderClient client = null;
+    // The request shared by the watchers, or null if there are none.
+    private LocationRequest sharedRequest = null;
+    private final LocationCallback callback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            dispatch(new ArrayList<Location>(locationResult.getLocations()));
+        }
+
+        @Override
+        public void onLocationAvailability(LocationAvailability availability) {
+            if (!availability.isLocationAvailable() && BuildConfig.DEBUG) {
+                Logger.debug("Location not available");
+            }
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -58,9 +108,10 @@ public class BackgroundGeolocationService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
         for (Watcher watcher : watchers) {
-            watcher.client.removeLocationUpdates(watcher.locationCallback);
+            disarm(watcher);
         }
         watchers = new HashSet<Watcher>();
+        subscribe();
         stopSelf();
         return false;
     }
@@ -74,111 +125,377 @@ public class BackgroundGeolocationService extends Service {
         return null;
     }
 
-    // Handles requests from the activity.
-    public class LocalBinder extends Binder {
-        void addWatcher(
-                final String id,
-                Notification backgroundNotification,
-                float distanceFilter
-        ) {
-            FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(
-                    BackgroundGeolocationService.this
+    // The watcher's own request, at low power if it is stationary.
+    private LocationRequest getRequest(Watcher watcher) {
+        return watcher.detector != null && watcher.detector.isStationary()
+                ? watcher.pausedRequest
+                : watcher.locationRequest;
+    }
+
+    // The distance filter the provider applies for the watcher. The provider
+    // withholds the locations of a device which is not moving, which are
+    // just what a stationary detector or a sampler needs to see, so while
+    // either is watching, the watcher's distance filter is applied by isDue()
+    // instead.
+    private static float getProviderDisplacement(Watcher watcher, LocationRequest request) {
+        boolean watching = watcher.detector != null
+                ? !watcher.detector.isStationary()
+                : watcher.sampler != null;
+        return watching ? 0 : request.getSmallestDisplacement();
+    }
+
+    // Brings the shared subscription into line with the watchers' requests.
+    // The shared request has the highest priority, the shortest intervals and
+    // the smallest distance filter of them all.
+    private void subscribe() {
+        if (client == null) {
+            client = LocationServices.getFusedLocationProviderClient(this);
+        }
+        if (watchers.isEmpty()) {
+            if (sharedRequest != null) {
+                client.removeLocationUpdates(callback);
+                sharedRequest = null;
+            }
+            return;
+        }
+        LocationRequest merged = null;
+        for (Watcher watcher : watchers) {
+            LocationRequest request = getRequest(watcher);
+            if (merged == null) {
+                merged = new LocationRequest();
+                merged.setPriority(request.getPriority());
+                merged.setInterval(request.getInterval());
+                merged.setFastestInterval(request.getFastestInterval());
+                merged.setMaxWaitTime(request.getMaxWaitTime());
+                merged.setSmallestDisplacement(getProviderDisplacement(watcher, request));
+                continue;
+            }
+            // The priorities are ordered from most to least accurate.
+            merged.setPriority(Math.min(merged.getPriority(), request.getPriority()));
+            merged.setInterval(Math.min(merged.getInterval(), request.getInterval()));
+            merged.setFastestInterval(
+                    Math.min(merged.getFastestInterval(), request.getFastestInterval())
             );
-            LocationRequest locationRequest = new LocationRequest();
-            locationRequest.setMaxWaitTime(1000);
-            locationRequest.setInterval(1000);
-            locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-            locationRequest.setSmallestDisplacement(distanceFilter);
+            merged.setMaxWaitTime(Math.min(merged.getMaxWaitTime(), request.getMaxWaitTime()));
+            merged.setSmallestDisplacement(
+                    Math.min(
+                            merged.getSmallestDisplacement(),
+                            getProviderDisplacement(watcher, request)
+                    )
+            );
+        }
+        if (
+            sharedRequest != null &&
+            merged.getPriority() == sharedRequest.getPriority() &&
+            merged.getInterval() == sharedRequest.getInterval() &&
+            merged.getFastestInterval() == sharedRequest.getFastestInterval() &&
+            merged.getMaxWaitTime() == sharedRequest.getMaxWaitTime() &&
+            merged.getSmallestDisplacement() == sharedRequest.getSmallestDisplacement()
+        ) {
+            return;
+        }
+        // According to Android Studio, this method can throw a Security Exception if
+        // permissions are not yet granted. Rather than check the permissions, which is fiddly,
+        // we simply ignore the exception. A request for the same callback replaces the
+        // previous one.
+        try {
+            client.requestLocationUpdates(merged, callback, Looper.getMainLooper());
+            sharedRequest = merged;
+        } catch (SecurityException ignore) {}
+    }
 
-            LocationCallback callback = new LocationCallback(){
-                @Override
-                public void onLocationResult(LocationResult locationResult) {
-                    Location location = locationResult.getLastLocation();
-                    Intent intent = new Intent(ACTION_BROADCAST);
-                    intent.putExtra("location", location);
-                    intent.putExtra("id", id);
-                    LocalBroadcastManager.getInstance(
-                            getApplicationContext()
-                    ).sendBroadcast(intent);
+    // Hands each watcher the locations its request asks for, then broadcasts
+    // them all at once. When updates are batched, the result holds every
+    // location since the last one, oldest first, and the order is kept.
+    private void dispatch(ArrayList<Location> locations) {
+        Bundle deliveries = new Bundle();
+        boolean changed = false;
+        for (Watcher watcher : new ArrayList<Watcher>(watchers)) {
+            List<Integer> indices = new ArrayList<Integer>();
+            for (int i = 0; i < locations.size(); i += 1) {
+                Location location = locations.get(i);
+                if (isStale(watcher, location)) {
+                    continue;
                 }
-                @Override
-                public void onLocationAvailability(LocationAvailability availability) {
-                    if (!availability.isLocationAvailable() && BuildConfig.DEBUG) {
-                        Logger.debug("Location not available");
+                // The detector sees every location, however few the watcher
+                // is given, so that it notices promptly when the device has
+                // stopped, or has left.
+                if (watcher.detector != null) {
+                    if (watcher.detector.hasLeft(location)) {
+                        resume(watcher, "exit", location);
+                        changed = true;
+                    } else if (watcher.detector.update(location)) {
+                        pause(watcher);
+                        changed = true;
                     }
                 }
+                boolean stationary = watcher.detector != null && watcher.detector.isStationary();
+                // So does the sampler, so that it notices the device slowing
+                // down, while the distance filter holds its locations back.
+                if (!stationary && watcher.sampler != null && watcher.sampler.update(location)) {
+                    adapt(watcher);
+                    changed = true;
+                }
+                if (!isDue(watcher, location)) {
+                    continue;
+                }
+                watcher.last = location;
+                indices.add(i);
+            }
+            if (!indices.isEmpty()) {
+                int[] array = new int[indices.size()];
+                for (int i = 0; i < array.length; i += 1) {
+                    array[i] = indices.get(i);
+                }
+                deliveries.putIntArray(watcher.id, array);
+            }
+        }
+        if (changed) {
+            subscribe();
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        Intent intent = new Intent(ACTION_BROADCAST);
+        intent.putParcelableArrayListExtra("locations", locations);
+        intent.putExtra("watchers", deliveries);
+        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+    }
+
+    // This version of the provider has no max update age, so it is applied
+    // here, to the watcher's first location.
+    private static boolean isStale(Watcher watcher, Location location) {
+        if (watcher.last != null || watcher.maxUpdateAge <= 0) {
+            return false;
+        }
+        long age = (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+        return age > watcher.maxUpdateAge;
+    }
+
+    // Whether the watcher's request lets it have the location, see
+    // DeliveryFilter.
+    private boolean isDue(Watcher watcher, Location location) {
+        LocationRequest request = getRequest(watcher);
+        long interval = watcher.fastestInterval > 0 && request == watcher.locationRequest
+                ? watcher.fastestInterval
+                : request.getInterval();
+        return DeliveryFilter.isDue(watcher.last, location, interval, request.getSmallestDisplacement());
+    }
+
+    // Drops a watcher which has stopped moving to a low power request. It is
+    // resumed by the significant motion sensor, where there is one, or by a
+    // location outside the detector's radius.
+    private void pause(final Watcher watcher) {
+        SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        Sensor sensor = sensorManager == null
+                ? null
+                : sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        watcher.pausedRequest = new LocationRequest();
+        watcher.pausedRequest.setInterval(PAUSED_INTERVAL);
+        watcher.pausedRequest.setMaxWaitTime(PAUSED_INTERVAL);
+        // Without the sensor, the watcher relies on its own locations to
+        // notice that it has left, so they can not be passive.
+        watcher.pausedRequest.setPriority(
+                sensor == null
+                        ? LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY
+                        : LocationRequest.PRIORITY_NO_POWER
+        );
+        if (sensor != null) {
+            watcher.motionListener = new TriggerEventListener() {
+                @Override
+                public void onTrigger(TriggerEvent event) {
+                    final TriggerEventListener listener = this;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (watcher.motionListener != listener) {
+                                return;
+                            }
+                            watcher.motionListener = null;
+                            if (watchers.contains(watcher)) {
+                                resume(watcher, "motion", null);
+                                subscribe();
+                            }
+                        }
+                    });
+                }
             };
+            sensorManager.requestTriggerSensor(watcher.motionListener, sensor);
+        }
+        broadcastMotion(watcher, true, "stationary");
+    }
+
+    private void resume(Watcher watcher, String trigger, Location location) {
+        disarm(watcher);
+        watcher.detector.reset(location);
+        broadcastMotion(watcher, false, trigger);
+    }
+
+    // Cancels the watcher's significant motion trigger, if it is armed.
+    private void disarm(Watcher watcher) {
+        if (watcher.motionListener == null) {
+            return;
+        }
+        SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        sensorManager.cancelTriggerSensor(
+                watcher.motionListener,
+                sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION)
+        );
+        watcher.motionListener = null;
+    }
+
+    private void broadcastMotion(Watcher watcher, boolean stationary, String trigger) {
+        if (BuildConfig.DEBUG) {
+            Logger.debug((stationary ? "Paused" : "Resumed") + " by " + trigger);
+        }
+        Intent intent = new Intent(ACTION_MOTION);
+        intent.putExtra("id", watcher.id);
+        intent.putExtra("stationary", stationary);
+        intent.putExtra("trigger", trigger);
+        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+    }
+
+    // Applies the interval and distance filter chosen by the watcher's
+    // sampler to its request.
+    private void adapt(Watcher watcher) {
+        if (BuildConfig.DEBUG) {
+            Logger.debug("Sampling for " + watcher.sampler.getTier());
+        }
+        watcher.locationRequest.setInterval(watcher.sampler.getInterval());
+        watcher.locationRequest.setSmallestDisplacement(watcher.sampler.getDisplacement());
+    }
 
+    // Handles requests from the activity.
+    public class LocalBinder extends Binder {
+        // The interval, fastest interval and max wait time are in
+        // milliseconds, and are passed to the LocationRequest. A fastest
+        // interval of zero leaves it to the provider. A max wait time longer
+        // than the interval lets the provider deliver locations in batches.
+        // A max update age above zero discards a stale first location, such
+        // as a cached one. An adaptive watcher's interval and distance filter
+        // are instead chosen by an AdaptiveSampler, and are the least it will
+        // choose. A stationary radius above zero pauses the watcher once its
+        // locations have stayed within the radius for the stationary window.
+        void addWatcher(
+                String id,
+                Notification backgroundNotification,
+                float distanceFilter,
+                long interval,
+                long fastestInterval,
+                long maxWaitTime,
+                int priority,
+                long maxUpdateAge,
+                boolean adaptive,
+                float stationaryRadius,
+                long stationaryWindow
+        ) {
             Watcher watcher = new Watcher();
+            if (stationaryRadius > 0) {
+                watcher.detector = new StationaryDetector(stationaryRadius, stationaryWindow);
+            }
+            if (adaptive) {
+                watcher.sampler = new AdaptiveSampler(interval, distanceFilter);
+                interval = watcher.sampler.getInterval();
+                distanceFilter = watcher.sampler.getDisplacement();
+            }
+            LocationRequest locationRequest = new LocationRequest();
+            locationRequest.setMaxWaitTime(maxWaitTime);
+            locationRequest.setInterval(interval);
+            if (fastestInterval > 0) {
+                locationRequest.setFastestInterval(fastestInterval);
+            }
+            locationRequest.setPriority(priority);
+            locationRequest.setSmallestDisplacement(distanceFilter);
+
             watcher.id = id;
-            watcher.client = client;
             watcher.locationRequest = locationRequest;
-            watcher.locationCallback = callback;
             watcher.backgroundNotification = backgroundNotification;
-            watchers.add(watcher);
-
-            // According to Android Studio, this method can throw a Security Exception if
-            // permissions are not yet granted. Rather than check the permissions, which is fiddly,
-            // we simply ignore the exception.
-            try {
-                watcher.client.requestLocationUpdates(
-                        watcher.locationRequest,
-                        watcher.locationCallback,
-                        null
-                );
-            } catch (SecurityException ignore) {}
-        }
-
-        void removeWatcher(String id) {
-            for (Watcher watcher : watchers) {
-                if (watcher.id.equals(id)) {
-                    watcher.client.removeLocationUpdates(watcher.locationCallback);
-                    watchers.remove(watcher);
-                    if (getNotification() == null) {
-                        stopForeground(true);
+            watcher.fastestInterval = fastestInterval;
+            watcher.maxUpdateAge = maxUpdateAge;
+            // The watcher is only touched by the main thread from here on.
+            final Watcher added = watcher;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    watchers.add(added);
+                    subscribe();
+                }
+            });
+        }
+
+        void removeWatcher(final String id) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Watcher watcher : watchers) {
+                        if (watcher.id.equals(id)) {
+                            disarm(watcher);
+                            watchers.remove(watcher);
+                            subscribe();
+                            if (getNotification() == null) {
+                                stopForeground(true);
+                            }
+                            return;
+                        }
                     }
-                    return;
                 }
-            }
+            });
         }
 
         void onPermissionsGranted() {
-            // If permissions were granted while the app was in the background, for example in
-            // the Settings app, the watchers need restarting.
-            for (Watcher watcher : watchers) {
-                watcher.client.removeLocationUpdates(watcher.locationCallback);
-                watcher.client.requestLocationUpdates(
-                        watcher.locationRequest,
-                        watcher.locationCallback,
-                        null
-                );
-            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // If permissions were granted while the app was in the background, for example in
+                    // the Settings app, the subscription needs restarting.
+                    if (sharedRequest != null) {
+                        client.removeLocationUpdates(callback);
+                        sharedRequest = null;
+                    }
+                    subscribe();
+                }
+            });
         }
 
         void onActivityStarted() {
-            stopForeground(true);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopForeground(true);
+                }
+            });
         }
 
         void onActivityStopped() {
-            Notification notification = getNotification();
-            if (notification != null) {
-                try {
-                    // Android 12 has a bug
-                    // (https://issuetracker.google.com/issues/229000935)
-                    // whereby it mistakenly thinks the app is in the
-                    // foreground at this point, even though it is not. This
-                    // causes a ForegroundServiceStartNotAllowedException to be
-                    // raised, crashing the app unless we suppress it here.
-                    // See issue #86.
-                    startForeground(NOTIFICATION_ID, notification);
-                } catch (Exception exception) {
-                    Logger.error("Failed to start service", exception);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Notification notification = getNotification();
+                    if (notification != null) {
+                        try {
+                            // Android 12 has a bug
+                            // (https://issuetracker.google.com/issues/229000935)
+                            // whereby it mistakenly thinks the app is in the
+                            // foreground at this point, even though it is not. This
+                            // causes a ForegroundServiceStartNotAllowedException to be
+                            // raised, crashing the app unless we suppress it here.
+                            // See issue #86.
+                            startForeground(NOTIFICATION_ID, notification);
+                        } catch (Exception exception) {
+                            Logger.error("Failed to start service", exception);
+                        }
+                    }
                 }
-            }
+            });
         }
 
         void stopService() {
-            BackgroundGeolocationService.this.stopSelf();
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopSelf();
+                }
+            });
         }
     }
 }
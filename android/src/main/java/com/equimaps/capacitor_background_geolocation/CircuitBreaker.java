@@ -0,0 +1,62 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.os.SystemClock;
+
+// Stops calls to a failing service for a while, rather than hammering it with
+// a request per fix. After enough consecutive failures the breaker opens and
+// refuses calls. Once the cool-off period has passed a single trial call is
+// let through (half open), and its outcome decides whether the breaker closes
+// again or stays open.
+class CircuitBreaker {
+    static final String CLOSED = "closed";
+    static final String OPEN = "open";
+    static final String HALF_OPEN = "half-open";
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private String state = CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private long trips = 0;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    synchronized boolean allowRequest() {
+        if (state.equals(OPEN) && SystemClock.elapsedRealtime() - openedAt >= openMillis) {
+            // Let a trial call through.
+            state = HALF_OPEN;
+            return true;
+        }
+        return state.equals(CLOSED);
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        state = CLOSED;
+    }
+
+    synchronized void onFailure() {
+        failures += 1;
+        if (state.equals(HALF_OPEN) || (state.equals(CLOSED) && failures >= failureThreshold)) {
+            state = OPEN;
+            openedAt = SystemClock.elapsedRealtime();
+            trips += 1;
+        }
+    }
+
+    synchronized String getState() {
+        return state;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    // The number of times the breaker has opened.
+    synchronized long getTrips() {
+        return trips;
+    }
+}
@@ -0,0 +1,24 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Decides whether a watcher is given a location, from the last location it
+// was given and the interval and distance filter of its request. The service
+// applies it to every location of the shared subscription, and the sampler's
+// tests apply it to their replays, so that both thin out a track alike.
+class DeliveryFilter {
+    private DeliveryFilter() {}
+
+    // Whether the location is far enough from, and late enough after, the
+    // last location. The shared subscription may deliver a little early, so
+    // the interval is given some slack.
+    static boolean isDue(Location last, Location location, long interval, float displacement) {
+        if (last == null) {
+            return true;
+        }
+        return (
+            location.getTime() - last.getTime() >= interval * 9 / 10 &&
+            location.distanceTo(last) >= displacement
+        );
+    }
+}
@@ -0,0 +1,231 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+// Runs a watcher's location enrichers in parallel and joins their results.
+//
+// Each kind of enricher is registered once, with a limit on how many lookups
+// it may have in flight, shared by every watcher. If the limit is reached, the
+// lookup is skipped rather than queued. The join also stops waiting for an
+// enricher after its timeout, so one slow provider can not hold up the others.
+//
+// Each watcher selects the enrichers it uses, and may bring its own instance
+// of one, such as a what3words client with the watcher's API key.
+class Enrichment {
+    interface Callback {
+        // Called on the main thread. Fields whose values could not be found
+        // are null.
+        void onResult(Map<String, String> fields);
+    }
+
+    private static class Provider {
+        final LocationEnricher enricher;
+        final Semaphore permits;
+        final long timeoutMillis;
+        long calls = 0;
+        long busy = 0;
+        long timeouts = 0;
+        long totalMillis = 0;
+
+        Provider(LocationEnricher enricher, int maxConcurrent, long timeoutMillis) {
+            this.enricher = enricher;
+            this.permits = new Semaphore(maxConcurrent);
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    // One of a watcher's enrichers.
+    private static class Selected {
+        final Provider provider;
+        final LocationEnricher enricher;
+        final long timeoutMillis;
+
+        Selected(Provider provider, LocationEnricher enricher, long timeoutMillis) {
+            this.provider = provider;
+            this.enricher = enricher;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    // The enrichers a watcher uses, see select().
+    static class Selection {
+        private final List<Selected> enrichers;
+
+        private Selection(List<Selected> enrichers) {
+            this.enrichers = enrichers;
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Provider> registered = new LinkedHashMap<>();
+
+    // The enricher may be null if each watcher brings its own, see select().
+    void register(String name, LocationEnricher enricher, int maxConcurrent, long timeoutMillis) {
+        registered.put(name, new Provider(enricher, maxConcurrent, timeoutMillis));
+    }
+
+    // Unknown names, including "none", are ignored. If several enrichers fill
+    // in the same field, only the first is used.
+    //
+    // An enricher in "instances" is used in place of the registered enricher
+    // of the same name, sharing its limit and its stats. A positive timeout
+    // shortens the registered timeouts.
+    Selection select(List<String> names, Map<String, LocationEnricher> instances, long timeoutMillis) {
+        List<Selected> enrichers = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        for (String name : names) {
+            Provider provider = registered.get(name);
+            if (provider == null) {
+                continue;
+            }
+            LocationEnricher enricher = instances.containsKey(name)
+                    ? instances.get(name)
+                    : provider.enricher;
+            if (enricher != null && !fields.contains(enricher.getField())) {
+                enrichers.add(new Selected(
+                        provider,
+                        enricher,
+                        timeoutMillis > 0
+                                ? Math.min(timeoutMillis, provider.timeoutMillis)
+                                : provider.timeoutMillis
+                ));
+                fields.add(enricher.getField());
+            }
+        }
+        return new Selection(enrichers);
+    }
+
+    // Returns the fields which are already known. Fields which are not are
+    // marked as pending.
+    Map<String, String> peek(Selection selection, Location location) {
+        Map<String, String> fields = new HashMap<>();
+        for (Selected selected : selection.enrichers) {
+            String value = selected.enricher.peek(location);
+            fields.put(
+                    selected.enricher.getField(),
+                    value != null ? value : LocationEnricher.PENDING
+            );
+        }
+        return fields;
+    }
+
+    static boolean isComplete(Map<String, String> fields) {
+        return !fields.containsValue(LocationEnricher.PENDING);
+    }
+
+    // Collects the results of one run.
+    private class Join {
+        private final Callback callback;
+        private final Map<String, String> fields = new HashMap<>();
+        private int remaining;
+
+        Join(Callback callback, int remaining) {
+            this.callback = callback;
+            this.remaining = remaining;
+        }
+
+        // Returns false if the field was already complete.
+        boolean complete(String field, String value) {
+            final Map<String, String> result;
+            synchronized (this) {
+                if (fields.containsKey(field)) {
+                    return false;
+                }
+                fields.put(field, value);
+                remaining -= 1;
+                if (remaining > 0) {
+                    return true;
+                }
+                result = new HashMap<>(fields);
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(result);
+                }
+            });
+            return true;
+        }
+    }
+
+    void run(Selection selection, Location location, final Callback callback) {
+        if (selection.enrichers.isEmpty()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(new HashMap<String, String>());
+                }
+            });
+            return;
+        }
+        final Join join = new Join(callback, selection.enrichers.size());
+        for (Selected selected : selection.enrichers) {
+            final Provider provider = selected.provider;
+            final String field = selected.enricher.getField();
+            if (!provider.permits.tryAcquire()) {
+                synchronized (provider) {
+                    provider.busy += 1;
+                }
+                join.complete(field, null);
+                continue;
+            }
+            final long startedAt = SystemClock.elapsedRealtime();
+            final Runnable timeout = new Runnable() {
+                @Override
+                public void run() {
+                    if (join.complete(field, null)) {
+                        synchronized (provider) {
+                            provider.timeouts += 1;
+                        }
+                    }
+                }
+            };
+            mainHandler.postDelayed(timeout, selected.timeoutMillis);
+            selected.enricher.enrich(location, new LocationEnricher.Callback() {
+                @Override
+                public void onResult(String value) {
+                    // The permit is held until the lookup really finishes,
+                    // even if the join has already timed out.
+                    provider.permits.release();
+                    mainHandler.removeCallbacks(timeout);
+                    synchronized (provider) {
+                        provider.calls += 1;
+                        provider.totalMillis += SystemClock.elapsedRealtime() - startedAt;
+                    }
+                    join.complete(field, value);
+                }
+            });
+        }
+    }
+
+    JSObject getStats() {
+        JSObject stats = new JSObject();
+        for (Map.Entry<String, Provider> entry : registered.entrySet()) {
+            Provider provider = entry.getValue();
+            JSObject providerStats = new JSObject();
+            synchronized (provider) {
+                providerStats.put("calls", provider.calls);
+                providerStats.put("busy", provider.busy);
+                providerStats.put("timeouts", provider.timeouts);
+                providerStats.put(
+                        "averageMillis",
+                        provider.calls > 0 ? provider.totalMillis / provider.calls : 0
+                );
+            }
+            stats.put(entry.getKey(), providerStats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,101 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+// Appends a session's locations to a file on the device, one JSON object per
+// line. Each line has a "type" of "location", "event" or "patch". The file is
+// "{sessionId}.jsonl" in the given directory.
+class FileSink implements LocationSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    FileSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void prewarm() {
+        directory.mkdirs();
+    }
+
+    @Override
+    public void enqueue(String sessionId, TrackPoint point) {}
+
+    @Override
+    public void write(
+            String sessionId,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events,
+            Callback callback
+    ) {
+        StringBuilder lines = new StringBuilder();
+        try {
+            for (TrackPoint point : points) {
+                JSONObject line = new JSONObject();
+                line.put("type", "location");
+                line.put("timestamp", point.timestamp);
+                line.put("latitude", point.latitude);
+                line.put("longitude", point.longitude);
+                line.put("w3w", point.getW3w());
+                line.put("address", point.getAddress());
+                lines.append(line.toString()).append('\n');
+            }
+            for (Map<String, Object> event : events) {
+                JSONObject line = new JSONObject(event);
+                line.put("type", "event");
+                line.put("event", event.get("type"));
+                lines.append(line.toString()).append('\n');
+            }
+        } catch (JSONException exception) {
+            callback.onFailure(exception);
+            return;
+        }
+        append(sessionId, lines, callback);
+    }
+
+    @Override
+    public void patch(String sessionId, long timestamp, Map<String, String> fields, Callback callback) {
+        StringBuilder lines = new StringBuilder();
+        try {
+            JSONObject line = new JSONObject();
+            line.put("type", "patch");
+            line.put("timestamp", timestamp);
+            line.put("resolved", new JSONObject(fields));
+            lines.append(line.toString()).append('\n');
+        } catch (JSONException exception) {
+            callback.onFailure(exception);
+            return;
+        }
+        append(sessionId, lines, callback);
+    }
+
+    @Override
+    public void close() {}
+
+    // The writes are small, so they are made directly on the upload thread.
+    private void append(String sessionId, StringBuilder lines, Callback callback) {
+        File file = new File(directory, Sinks.getFileName(sessionId, ".jsonl"));
+        try {
+            directory.mkdirs();
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(lines.toString().getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException exception) {
+            callback.onFailure(exception);
+            return;
+        }
+        callback.onSuccess();
+    }
+}
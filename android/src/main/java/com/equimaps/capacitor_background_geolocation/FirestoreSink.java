@@ -0,0 +1,382 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.GeoPoint;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Stores a session's locations in Firestore, under "sessions/{sessionId}".
+//
+// Each batch is committed as a single update, with one multi-element
+// arrayUnion per array.
+//
+// Sessions are stored in one of two layouts. In the "array" layout, every
+// location is appended to arrays on the session document itself. That
+// document grows without bound, making each append and each listener update
+// more expensive, until it hits Firestore's 1 MiB limit. In the "chunks"
+// layout, locations are instead appended to documents in the session's
+// "chunks" subcollection, and the session document only holds a summary.
+// Chunks are bucketed by time and capped in size, and their IDs are derived
+// from the start of their bucket, so they sort chronologically.
+//
+// A location's chunk is chosen when it is queued, so that it is known to
+// patches before the location is written, and it is saved with the location
+// in the outbox. The state of the current chunk is kept in a small file per
+// session, so that a session carries on in the same chunks after a restart.
+//
+// Locations are stored either as maps, or in the "encoded" format as
+// segments encoded by TrackEncoder.
+//
+// Locations replayed from the outbox may already have been written. A
+// replayed location goes to the same chunk as before, and its map is the
+// same as before, so arrayUnion does not add it again. Counts are set from
+// the locations' positions, rather than incremented, so they are not
+// counted again either. Replayed locations are batched afresh, though, so an
+// encoded segment may repeat locations from an earlier one; decodeSegments()
+// in track.js drops the repeats.
+class FirestoreSink implements LocationSink {
+    private static final int STATE_SIZE = 24;
+
+    private final UploadThread uploadThread;
+    private final File stateDirectory;
+    private final boolean encoded;
+    private final boolean chunked;
+    private final long chunkDuration;
+    private final int chunkSize;
+    private long chunkStart = -1;
+    private int chunkIndex = 0;
+    private int chunkCount = 0;
+    private long sessionCount = 0;
+    // The chunk state above, saved. Opened by the first location queued.
+    private RandomAccessFile state = null;
+    // The chunks of recent locations, by timestamp, so that they can be
+    // patched.
+    private final LinkedHashMap<Long, String> recentChunks = new LinkedHashMap<Long, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > 1000;
+        }
+    };
+    // The highest counts written by this sink, by chunk ID, and for the
+    // session. Firestore applies a client's writes in the order they are
+    // made, so a count is only written if it is higher than the last, and
+    // a replayed batch can not wind it back. (A batch which failed before a
+    // later one succeeded, and is replayed after a restart, winds it back
+    // until the next new location is written.)
+    private final LinkedHashMap<String, Integer> writtenCounts = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > 100;
+        }
+    };
+    private long writtenSessionCount = 0;
+    // Firestore is not started until it is needed, as starting it slows down
+    // the app's launch.
+    private FirebaseFirestore db = null;
+
+    // The chunk state of each session is kept in the given directory.
+    FirestoreSink(UploadThread uploadThread, File stateDirectory, Map<String, String> options) {
+        this.uploadThread = uploadThread;
+        this.stateDirectory = stateDirectory;
+        encoded = "encoded".equals(options.get("format"));
+        chunked = "chunks".equals(options.get("storage"));
+        chunkDuration = Math.max(Sinks.getLong(options, "chunkDuration", 600000), 1000);
+        chunkSize = (int) Math.max(Sinks.getLong(options, "chunkSize", 500), 1);
+    }
+
+    @Override
+    public void prewarm() {
+        getDb();
+    }
+
+    @Override
+    public void enqueue(String sessionId, TrackPoint point) {
+        if (chunked) {
+            assignChunk(sessionId, point);
+        }
+    }
+
+    @Override
+    public void write(
+            String sessionId,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events,
+            final Callback callback
+    ) {
+        Task<Void> commit = chunked
+                ? commitChunks(sessionId, points, events.toArray())
+                : commitArrays(sessionId, points, events.toArray());
+        commit
+            .addOnSuccessListener(uploadThread.getExecutor(), new OnSuccessListener<Void>() {
+                @Override
+                public void onSuccess(Void aVoid) {
+                    callback.onSuccess();
+                }
+            })
+            .addOnFailureListener(uploadThread.getExecutor(), new OnFailureListener() {
+                @Override
+                public void onFailure(@NonNull Exception e) {
+                    Log.w("Firestore", "Error updating document", e);
+                    callback.onFailure(e);
+                }
+            });
+    }
+
+    // The fields are stored in the "resolved" map, keyed by the location's
+    // timestamp.
+    @Override
+    public void patch(
+            String sessionId,
+            long timestamp,
+            Map<String, String> fields,
+            final Callback callback
+    ) {
+        Map<String, Object> resolved = new HashMap<>();
+        resolved.put(String.valueOf(timestamp), new HashMap<String, Object>(fields));
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("resolved", resolved);
+        // Merging, rather than updating, works even if the location's chunk
+        // has not been created yet.
+        getPatchTarget(sessionId, timestamp).set(updates, SetOptions.merge())
+            .addOnSuccessListener(uploadThread.getExecutor(), new OnSuccessListener<Void>() {
+                @Override
+                public void onSuccess(Void aVoid) {
+                    callback.onSuccess();
+                }
+            })
+            .addOnFailureListener(uploadThread.getExecutor(), new OnFailureListener() {
+                @Override
+                public void onFailure(@NonNull Exception e) {
+                    Log.w("Firestore", "Error updating document", e);
+                    callback.onFailure(e);
+                }
+            });
+    }
+
+    // The chunk state is reopened, and reloaded, if the sink is used again.
+    @Override
+    public void close() {
+        if (state == null) {
+            return;
+        }
+        try {
+            state.close();
+        } catch (IOException exception) {
+            Log.w("Firestore", "Could not close chunk state", exception);
+        }
+        state = null;
+    }
+
+    private Task<Void> commitArrays(String sessionId, List<TrackPoint> points, Object[] events) {
+        // Create an updates hashmap
+        Map<String, Object> updates = new HashMap<>();
+        if (!points.isEmpty()) {
+            putLocations(updates, points);
+        }
+        if (events.length > 0) {
+            updates.put("logs", FieldValue.arrayUnion(events));
+        }
+
+        // Update the document with the new locations
+        return getDocument(sessionId).update(updates);
+    }
+
+    private Task<Void> commitChunks(String sessionId, List<TrackPoint> points, Object[] events) {
+        // A batch spans more than one chunk if it crosses a boundary.
+        LinkedHashMap<String, List<TrackPoint>> chunks = new LinkedHashMap<>();
+        for (TrackPoint point : points) {
+            if (point.chunkId == null) {
+                // Saved before the session was stored in chunks.
+                assignChunk(sessionId, point);
+            }
+            List<TrackPoint> chunk = chunks.get(point.chunkId);
+            if (chunk == null) {
+                chunk = new ArrayList<>();
+                chunks.put(point.chunkId, chunk);
+            }
+            chunk.add(point);
+        }
+
+        WriteBatch writeBatch = getDb().batch();
+        for (Map.Entry<String, List<TrackPoint>> chunk : chunks.entrySet()) {
+            List<TrackPoint> chunkPoints = chunk.getValue();
+            TrackPoint first = chunkPoints.get(0);
+            Map<String, Object> data = new HashMap<>();
+            // Every field is safe to merge more than once, so a chunk is
+            // created by whichever write reaches it first.
+            data.put("start", first.timestamp - first.timestamp % chunkDuration);
+            int count = 0;
+            for (TrackPoint point : chunkPoints) {
+                count = Math.max(count, point.chunkPosition);
+            }
+            Integer written = writtenCounts.get(chunk.getKey());
+            if (written == null || count > written) {
+                data.put("count", count);
+                writtenCounts.put(chunk.getKey(), count);
+            }
+            putLocations(data, chunkPoints);
+            writeBatch.set(getChunk(sessionId, chunk.getKey()), data, SetOptions.merge());
+        }
+
+        // Events are rare, so they are kept on the session document.
+        Map<String, Object> summary = new HashMap<>();
+        TrackPoint last = null;
+        for (TrackPoint point : points) {
+            if (last == null || point.sessionPosition > last.sessionPosition) {
+                last = point;
+            }
+        }
+        if (last != null && last.sessionPosition > writtenSessionCount) {
+            summary.put("lastLocation", toLocations(Collections.singletonList(last))[0]);
+            summary.put("lastChunk", last.chunkId);
+            summary.put("locationCount", last.sessionPosition);
+            writtenSessionCount = last.sessionPosition;
+        }
+        if (events.length > 0) {
+            summary.put("logs", FieldValue.arrayUnion(events));
+        }
+        if (!summary.isEmpty()) {
+            writeBatch.update(getDocument(sessionId), summary);
+        }
+        return writeBatch.commit();
+    }
+
+    private void putLocations(Map<String, Object> data, List<TrackPoint> points) {
+        if (encoded) {
+            data.put("segments", FieldValue.arrayUnion(TrackEncoder.encode(points)));
+        } else {
+            data.put("locations", FieldValue.arrayUnion(toLocations(points)));
+        }
+    }
+
+    static Object[] toLocations(List<TrackPoint> points) {
+        Object[] locations = new Object[points.size()];
+        for (int i = 0; i < locations.length; i += 1) {
+            TrackPoint point = points.get(i);
+
+            // Create a new location map
+            Map<String, Object> newLocation = new HashMap<>();
+            newLocation.put("type", "tracked");
+            newLocation.put("timestamp", point.timestamp);
+            newLocation.put("geopoint", new GeoPoint(point.latitude, point.longitude));
+            newLocation.put("address", point.getAddress());
+            newLocation.put("w3w", point.getW3w());
+            locations[i] = newLocation;
+        }
+        return locations;
+    }
+
+    // Assigns a location to the chunk for its time bucket. A full chunk is
+    // continued in another chunk for the same bucket, with an index appended
+    // to its ID.
+    private void assignChunk(String sessionId, TrackPoint point) {
+        if (state == null) {
+            openState(sessionId);
+        }
+        long start = point.timestamp - point.timestamp % chunkDuration;
+        if (start != chunkStart) {
+            chunkStart = start;
+            chunkIndex = 0;
+            chunkCount = 0;
+        } else if (chunkCount >= chunkSize) {
+            chunkIndex += 1;
+            chunkCount = 0;
+        }
+        chunkCount += 1;
+        sessionCount += 1;
+        point.chunkId = getChunkId(start, chunkIndex);
+        point.chunkPosition = chunkCount;
+        point.sessionPosition = sessionCount;
+        recentChunks.put(point.timestamp, point.chunkId);
+        saveState();
+    }
+
+    // Loads the session's chunk state, if it was saved by an earlier sink.
+    private void openState(String sessionId) {
+        try {
+            stateDirectory.mkdirs();
+            state = new RandomAccessFile(
+                    new File(stateDirectory, Sinks.getFileName(sessionId, ".chunk")),
+                    "rw"
+            );
+            if (state.length() >= STATE_SIZE) {
+                chunkStart = state.readLong();
+                chunkIndex = state.readInt();
+                chunkCount = state.readInt();
+                sessionCount = state.readLong();
+            }
+        } catch (IOException exception) {
+            Log.w("Firestore", "Could not read chunk state", exception);
+        }
+    }
+
+    // Losing this write only lets the chunk in progress grow past its size,
+    // or restart at the wrong index, so it is not synced.
+    private void saveState() {
+        if (state == null) {
+            return;
+        }
+        try {
+            state.seek(0);
+            state.writeLong(chunkStart);
+            state.writeInt(chunkIndex);
+            state.writeInt(chunkCount);
+            state.writeLong(sessionCount);
+        } catch (IOException exception) {
+            Log.w("Firestore", "Could not save chunk state", exception);
+        }
+    }
+
+    private static String getChunkId(long start, int index) {
+        // Zero padding makes the IDs sort in time order.
+        return String.format(Locale.US, "%013d-%03d", start, index);
+    }
+
+    private FirebaseFirestore getDb() {
+        if (db == null) {
+            db = FirebaseFirestore.getInstance();
+        }
+        return db;
+    }
+
+    private DocumentReference getDocument(String sessionId) {
+        return getDb().collection("sessions").document(sessionId);
+    }
+
+    private DocumentReference getChunk(String sessionId, String chunkId) {
+        return getDocument(sessionId).collection("chunks").document(chunkId);
+    }
+
+    // The document holding the location with the given timestamp.
+    private DocumentReference getPatchTarget(String sessionId, long timestamp) {
+        if (!chunked) {
+            return getDocument(sessionId);
+        }
+        String chunkId = recentChunks.get(timestamp);
+        if (chunkId == null) {
+            // Too old to be remembered, so assume its bucket's first chunk.
+            chunkId = getChunkId(timestamp - timestamp % chunkDuration, 0);
+        }
+        return getChunk(sessionId, chunkId);
+    }
+}
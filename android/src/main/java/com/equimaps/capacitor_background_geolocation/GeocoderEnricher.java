@@ -0,0 +1,74 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+import android.location.Location;
+
+import java.io.IOException;
+import java.util.List;
+
+// Fills in the street address using the platform's Geocoder. This is free, but
+// it is not available on every device.
+class GeocoderEnricher implements LocationEnricher {
+    private final Context context;
+    private final LookupExecutor executor = new LookupExecutor("geocoder", 1, 8);
+
+    GeocoderEnricher(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public String getField() {
+        return "address";
+    }
+
+    @Override
+    public String peek(Location location) {
+        return null;
+    }
+
+    @Override
+    public void enrich(final Location location, final Callback callback) {
+        if (!Geocoder.isPresent()) {
+            callback.onResult(null);
+            return;
+        }
+        executor.execute(new LookupExecutor.Task() {
+            @Override
+            public void run() {
+                String result = null;
+                try {
+                    List<Address> addresses = new Geocoder(context).getFromLocation(
+                            location.getLatitude(),
+                            location.getLongitude(),
+                            1
+                    );
+                    if (addresses != null && !addresses.isEmpty()) {
+                        Address address = addresses.get(0);
+                        StringBuilder lines = new StringBuilder();
+                        for (int i = 0; i <= address.getMaxAddressLineIndex(); i += 1) {
+                            if (i > 0) {
+                                lines.append(", ");
+                            }
+                            lines.append(address.getAddressLine(i));
+                        }
+                        result = lines.toString();
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+                callback.onResult(result);
+            }
+
+            @Override
+            void onDiscarded() {
+                callback.onResult(null);
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
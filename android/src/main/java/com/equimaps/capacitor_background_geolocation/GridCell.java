@@ -0,0 +1,26 @@
+package com.equimaps.capacitor_background_geolocation;
+
+// Quantizes coordinates onto a grid of roughly 3 metre square cells, matching
+// the size of a what3words square. Each cell is identified by a long, packing
+// the row into the high 32 bits and the column into the low 32 bits.
+final class GridCell {
+    static final double SIZE_METRES = 3;
+    private static final double METRES_PER_DEGREE = 111320;
+    private static final double SIZE_DEGREES = SIZE_METRES / METRES_PER_DEGREE;
+
+    private GridCell() {}
+
+    static long id(double latitude, double longitude) {
+        long row = (long) Math.floor((latitude + 90) / SIZE_DEGREES);
+        // Columns get wider towards the poles so that cells stay roughly
+        // square. The width is taken from the middle of the row, so that every
+        // point in the row agrees on it.
+        double rowLatitude = (row + 0.5) * SIZE_DEGREES - 90;
+        double width = SIZE_DEGREES / Math.max(
+                Math.cos(Math.toRadians(rowLatitude)),
+                1e-6
+        );
+        long column = (long) Math.floor((longitude + 180) / width);
+        return (row << 32) | (column & 0xFFFFFFFFL);
+    }
+}
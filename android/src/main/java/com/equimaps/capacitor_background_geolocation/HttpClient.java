@@ -0,0 +1,143 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+// The HTTP client used for the plugin's network lookups and uploads.
+//
+// HttpURLConnection keeps connections alive and pools them, but only if each
+// response body is read to the end and closed, rather than disconnected. The
+// pool also matches on the socket factory, so a single factory is shared to
+// let connections, and the TLS sessions they carry, be reused.
+//
+// Responses are read into a buffer which belongs to the calling thread and is
+// reused for every request that thread makes.
+class HttpClient {
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+
+    // Only valid until the calling thread makes its next request.
+    static class Response {
+        final int status;
+        final byte[] body;
+        final int length;
+
+        Response(int status, byte[] body, int length) {
+            this.status = status;
+            this.body = body;
+            this.length = length;
+        }
+
+        boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    // Loading the default factory initialises the platform's TLS provider,
+    // which is slow, so it is not done until the first request, off the main
+    // thread.
+    private SSLSocketFactory socketFactory = null;
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    HttpClient(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    Response get(URL url) throws IOException {
+        return read(open(url, "GET"));
+    }
+
+    Response post(URL url, byte[] body, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = open(url, "POST");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return read(connection);
+    }
+
+    private Response read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        byte[] buffer = buffers.get();
+        int length = 0;
+        if (in != null) {
+            try {
+                int read;
+                while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                    if (length == buffer.length) {
+                        if (buffer.length >= MAX_BODY_SIZE) {
+                            throw new IOException("Response body too large");
+                        }
+                        byte[] larger = new byte[buffer.length * 2];
+                        System.arraycopy(buffer, 0, larger, 0, length);
+                        buffer = larger;
+                        buffers.set(buffer);
+                    }
+                }
+            } finally {
+                // Closing, rather than disconnecting, returns the connection
+                // to the pool.
+                in.close();
+            }
+        }
+        return new Response(status, buffer, length);
+    }
+
+    // Opens a connection to the host ahead of time, so that the DNS lookup and
+    // TCP and TLS handshakes are not paid for by the first real request.
+    // Failures are ignored.
+    void preconnect(URL url) {
+        try {
+            HttpURLConnection connection = open(url, "HEAD");
+            connection.getResponseCode();
+            InputStream in = connection.getErrorStream();
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException ignore) {}
+    }
+
+    private HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory());
+        }
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory() {
+        if (socketFactory == null) {
+            socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        return socketFactory;
+    }
+}
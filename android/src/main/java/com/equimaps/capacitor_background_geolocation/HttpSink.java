@@ -0,0 +1,177 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Sends locations to a URL, as JSON in the body of a POST request. A batch is
+// sent as
+//
+//  {
+//      type: "locations",
+//      sessionId: <the session's ID>,
+//      locations: [{timestamp, latitude, longitude, w3w, address}, ...],
+//      events: [<log entries>, ...]
+//  }
+//
+// or, in the "encoded" format, with "segments" in place of "locations". Late
+// fields are sent as {type: "patch", sessionId, timestamp, resolved}. Any
+// response other than a 2xx is a failure.
+//
+// Each request is sent with the headers most recently configured for the
+// URL, see Sinks.
+class HttpSink implements LocationSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Runs callbacks on the upload thread.
+    private final Executor callbacks;
+    private final LookupExecutor executor;
+    private final HttpClient httpClient;
+    private final String url;
+    private final boolean encoded;
+    // The headers for each URL, shared with Sinks.
+    private final Map<String, Map<String, String>> headers;
+
+    HttpSink(
+            Executor callbacks,
+            LookupExecutor executor,
+            HttpClient httpClient,
+            Map<String, String> options,
+            Map<String, Map<String, String>> headers
+    ) {
+        this.callbacks = callbacks;
+        this.executor = executor;
+        this.httpClient = httpClient;
+        this.headers = headers;
+        url = options.get("url");
+        encoded = "encoded".equals(options.get("format"));
+    }
+
+    @Override
+    public void prewarm() {
+        if (url == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    httpClient.preconnect(new URL(url));
+                } catch (MalformedURLException ignore) {}
+            }
+        });
+    }
+
+    @Override
+    public void enqueue(String sessionId, TrackPoint point) {}
+
+    @Override
+    public void write(
+            String sessionId,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events,
+            Callback callback
+    ) {
+        try {
+            JSONObject body = new JSONObject();
+            body.put("type", "locations");
+            body.put("sessionId", sessionId);
+            if (encoded) {
+                JSONArray segments = new JSONArray();
+                if (!points.isEmpty()) {
+                    segments.put(new JSONObject(TrackEncoder.encode(points)));
+                }
+                body.put("segments", segments);
+            } else {
+                JSONArray locations = new JSONArray();
+                for (TrackPoint point : points) {
+                    JSONObject location = new JSONObject();
+                    location.put("timestamp", point.timestamp);
+                    location.put("latitude", point.latitude);
+                    location.put("longitude", point.longitude);
+                    location.put("w3w", point.getW3w());
+                    location.put("address", point.getAddress());
+                    locations.put(location);
+                }
+                body.put("locations", locations);
+            }
+            JSONArray eventArray = new JSONArray();
+            for (Map<String, Object> event : events) {
+                eventArray.put(new JSONObject(event));
+            }
+            body.put("events", eventArray);
+            send(body, callback);
+        } catch (JSONException exception) {
+            callback.onFailure(exception);
+        }
+    }
+
+    @Override
+    public void patch(String sessionId, long timestamp, Map<String, String> fields, Callback callback) {
+        try {
+            JSONObject body = new JSONObject();
+            body.put("type", "patch");
+            body.put("sessionId", sessionId);
+            body.put("timestamp", timestamp);
+            body.put("resolved", new JSONObject(fields));
+            send(body, callback);
+        } catch (JSONException exception) {
+            callback.onFailure(exception);
+        }
+    }
+
+    @Override
+    public void close() {}
+
+    // Makes the request on the executor, and calls back on the upload thread.
+    private void send(JSONObject body, final Callback callback) {
+        final byte[] bytes = body.toString().getBytes(UTF_8);
+        Map<String, String> current = headers.get(url);
+        final Map<String, String> requestHeaders = current == null
+                ? Collections.<String, String>emptyMap()
+                : current;
+        executor.execute(new LookupExecutor.Task() {
+            @Override
+            public void run() {
+                Exception failure = null;
+                try {
+                    HttpClient.Response response = httpClient.post(new URL(url), bytes, requestHeaders);
+                    if (!response.isSuccessful()) {
+                        failure = new IOException("Sink responded with status " + response.status);
+                    }
+                } catch (IOException exception) {
+                    failure = exception;
+                }
+                complete(callback, failure);
+            }
+
+            @Override
+            void onDiscarded() {
+                complete(callback, new RejectedExecutionException("Upload queue is full"));
+            }
+        });
+    }
+
+    private void complete(final Callback callback, final Exception failure) {
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure == null) {
+                    callback.onSuccess();
+                } else {
+                    callback.onFailure(failure);
+                }
+            }
+        });
+    }
+}
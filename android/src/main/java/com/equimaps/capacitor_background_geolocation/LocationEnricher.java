@@ -0,0 +1,25 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Adds a piece of information to a location before it is stored, such as its
+// what3words or street address. Enrichers are run in parallel by Enrichment.
+interface LocationEnricher {
+    // Stored in place of a value which has not been looked up (yet).
+    String PENDING = "Pending";
+
+    interface Callback {
+        // The value is null if it could not be found.
+        void onResult(String value);
+    }
+
+    // The name of the stored field this enricher fills in.
+    String getField();
+
+    // Returns the value if it is already known, without doing any work.
+    // Otherwise returns null.
+    String peek(Location location);
+
+    // Looks up the value, calling back exactly once, from any thread.
+    void enrich(Location location, Callback callback);
+}
@@ -0,0 +1,41 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.List;
+import java.util.Map;
+
+// Somewhere locations are sent to be stored, such as Firestore. Batching,
+// queueing, retrying and the outbox are handled by LocationWriter, so a sink
+// only has to send what it is given.
+//
+// Sinks are only called on the upload thread, and must call back exactly
+// once, on the upload thread.
+interface LocationSink {
+    interface Callback {
+        void onSuccess();
+        void onFailure(Exception exception);
+    }
+
+    // Does any expensive setup ahead of the first write.
+    void prewarm();
+
+    // Called on each new location as it is queued, before it is saved to the
+    // outbox, so that the sink can record on it where it will be stored. It
+    // is not called again when the location is replayed from the outbox.
+    void enqueue(String sessionId, TrackPoint point);
+
+    // Sends a batch of locations and log entries, either of which may be
+    // empty.
+    void write(
+            String sessionId,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events,
+            Callback callback
+    );
+
+    // Sends fields which were looked up after their location was written.
+    void patch(String sessionId, long timestamp, Map<String, String> fields, Callback callback);
+
+    // Releases what the sink holds open, once it has been replaced or the
+    // plugin is destroyed. Writes already in flight still call back.
+    void close();
+}
@@ -0,0 +1,518 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes each session's locations to its sink.
+//
+// Each write is billed and contended separately, so locations are collected
+// into batches. A batch is sent once it holds enough locations or has waited
+// long enough. The thresholds are set per session, and default to sending
+// every location immediately.
+//
+// Every location is appended to an outbox before it is batched, and
+// acknowledged once its batch is sent. Locations left in the outbox by a
+// previous process are sent again by recover(), a chunk at a time. A batch
+// which fails is put back and retried after a growing delay, which is capped,
+// for as long as it takes.
+//
+// Each session only allows a few writes in flight at once. Firestore queues
+// writes it can not send, so on a poor connection they used to pile up
+// without limit. Instead, locations wait in their batch, which is bounded. When a
+// batch is full, a location is evicted according to the session's overflow
+// policy:
+//
+//  - "dropOldest" evicts the oldest location,
+//  - "collapse" replaces the newest location, so that the batch keeps its
+//    history and the latest location,
+//  - "decimate" evicts the location nearest to its predecessor, thinning
+//    out the track where it matters least.
+//
+// Apart from getStats(), the writer must only be used on the upload thread.
+class LocationWriter {
+    // Keeps each write well inside Firestore's limits.
+    private static final int MAX_WRITE_SIZE = 500;
+    // The retry delay doubles from a second up to this.
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+    // The outbox is replayed this many locations at a time. The next chunk is
+    // read once the queue has drained below it, so that replayed locations
+    // do not have to be evicted to make room.
+    private static final int REPLAY_CHUNK = 200;
+    // How long close() waits for the writes in flight.
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    private static class Batch {
+        LocationSink sink = null;
+        int size = 1;
+        long interval = 0;
+        final List<TrackPoint> points = new ArrayList<>();
+        final List<Map<String, Object>> events = new ArrayList<>();
+        Runnable timer = null;
+        // Whether the batch is waiting for a write to finish.
+        boolean waiting = false;
+        // Whether the batch is waiting to retry a failed write.
+        boolean backingOff = false;
+        int attempts = 0;
+        int capacity = 1000;
+        String overflow = "dropOldest";
+        int maxInFlight = 4;
+        int inFlight = 0;
+    }
+
+    private final Outbox outbox;
+    private final Sinks sinks;
+    private final UploadThread uploadThread;
+    private final Handler handler;
+    private final HashMap<String, Batch> batches = new HashMap<>();
+    // The writes in flight for all sessions. Read by getStats() on other
+    // threads.
+    private volatile int inFlight = 0;
+    // Whether the outbox is being replayed, and whether the next chunk has
+    // been posted.
+    private boolean restoring = false;
+    private boolean replayPosted = false;
+    // Run by close() once nothing is in flight.
+    private Runnable onClosed = null;
+    private long flushes = 0;
+    private long dropped = 0;
+    private long queued = 0;
+    private long highWater = 0;
+    private long written = 0;
+    private long failures = 0;
+    private long retries = 0;
+    private long lastFlushSize = 0;
+    private long lastFlushMillis = 0;
+
+    LocationWriter(Outbox outbox, Sinks sinks, UploadThread uploadThread) {
+        this.outbox = outbox;
+        this.sinks = sinks;
+        this.uploadThread = uploadThread;
+        this.handler = uploadThread.getHandler();
+    }
+
+    // Selects the sink the session's locations are sent to. See Sinks.
+    void configureSink(String sessionId, String name, Map<String, String> options) {
+        uploadThread.check();
+        getBatch(sessionId).sink = sinks.create(sessionId, name, options);
+    }
+
+    // A batch is sent when it holds "size" locations, or "interval"
+    // milliseconds after its first location was added. An interval of zero
+    // means batches wait until they are full.
+    void configure(String sessionId, int size, long interval) {
+        uploadThread.check();
+        Batch batch = getBatch(sessionId);
+        batch.size = Math.max(size, 1);
+        batch.interval = Math.max(interval, 0);
+    }
+
+    // Bounds the session's batch to "capacity" locations, and its writes in
+    // flight to "maxInFlight".
+    void configureQueue(String sessionId, int capacity, String overflow, int maxInFlight) {
+        uploadThread.check();
+        Batch batch = getBatch(sessionId);
+        batch.capacity = Math.max(capacity, 1);
+        batch.overflow = overflow;
+        batch.maxInFlight = Math.max(maxInFlight, 1);
+    }
+
+    // Does the sink's setup ahead of the first write.
+    void prewarm(String sessionId) {
+        uploadThread.check();
+        getBatch(sessionId).sink.prewarm();
+    }
+
+    void write(final String sessionId, TrackPoint point) {
+        uploadThread.check();
+        Batch batch = getBatch(sessionId);
+        if (point.seq == 0) {
+            batch.sink.enqueue(sessionId, point);
+            point.seq = outbox.append(toRecord(sessionId, point));
+        }
+        batch.points.add(point);
+        if (batch.points.size() > batch.capacity) {
+            evict(batch);
+        } else {
+            setQueued(queued + 1);
+        }
+        if (batch.waiting || batch.backingOff) {
+            return;
+        }
+        if (batch.points.size() >= batch.size) {
+            flush(sessionId);
+        } else if (batch.timer == null && batch.interval > 0) {
+            batch.timer = new Runnable() {
+                @Override
+                public void run() {
+                    flush(sessionId);
+                }
+            };
+            handler.postDelayed(batch.timer, batch.interval);
+        }
+    }
+
+    void flush(final String sessionId) {
+        uploadThread.check();
+        final Batch batch = batches.get(sessionId);
+        if (batch == null || batch.backingOff) {
+            return;
+        }
+        if (batch.timer != null) {
+            handler.removeCallbacks(batch.timer);
+            batch.timer = null;
+        }
+        if (batch.points.isEmpty() && batch.events.isEmpty()) {
+            return;
+        }
+        if (batch.inFlight >= batch.maxInFlight) {
+            batch.waiting = true;
+            return;
+        }
+        final int count = Math.min(batch.points.size(), MAX_WRITE_SIZE);
+        final List<TrackPoint> points = new ArrayList<>(batch.points.subList(0, count));
+        batch.points.subList(0, count).clear();
+        batch.waiting = !batch.points.isEmpty();
+        setQueued(queued - count);
+        batch.inFlight += 1;
+        inFlight += 1;
+        final List<Map<String, Object>> events = new ArrayList<>(batch.events);
+        batch.events.clear();
+
+        final long startedAt = SystemClock.elapsedRealtime();
+        batch.sink.write(sessionId, points, events, new LocationSink.Callback() {
+            @Override
+            public void onSuccess() {
+                long millis = SystemClock.elapsedRealtime() - startedAt;
+                synchronized (LocationWriter.this) {
+                    flushes += 1;
+                    written += count;
+                    lastFlushSize = count;
+                    lastFlushMillis = millis;
+                }
+                batch.attempts = 0;
+                for (TrackPoint point : points) {
+                    outbox.ack(point.seq);
+                }
+                Log.d("Upload", "Wrote " + count + " locations in " + millis + "ms");
+                onSent(sessionId, batch);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                synchronized (LocationWriter.this) {
+                    failures += 1;
+                }
+                retry(sessionId, batch, points, events);
+                onSent(sessionId, batch);
+            }
+        });
+    }
+
+    // Puts a failed batch back, to be sent again after a delay. The batch is
+    // still bounded by its capacity, so a long outage evicts locations by the
+    // session's overflow policy rather than piling them up.
+    private void retry(
+            final String sessionId,
+            Batch batch,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events
+    ) {
+        batch.attempts += 1;
+        synchronized (this) {
+            retries += 1;
+        }
+        batch.points.addAll(0, points);
+        setQueued(queued + points.size());
+        while (batch.points.size() > batch.capacity) {
+            evict(batch);
+            setQueued(queued - 1);
+        }
+        batch.events.addAll(0, events);
+        batch.backingOff = true;
+        long delay = Math.min(1000L << Math.min(batch.attempts, 16), MAX_RETRY_DELAY);
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Batch batch = batches.get(sessionId);
+                batch.backingOff = false;
+                flush(sessionId);
+            }
+        }, delay);
+    }
+
+    // Sends the rest of the batch, if it was waiting for this write, and
+    // replays more of the outbox if there is room.
+    private void onSent(String sessionId, Batch batch) {
+        batch.inFlight -= 1;
+        inFlight -= 1;
+        if (batch.waiting) {
+            flush(sessionId);
+        }
+        if (onClosed != null) {
+            if (inFlight == 0) {
+                closed();
+            }
+            return;
+        }
+        if (restoring && queued < REPLAY_CHUNK && !replayPosted) {
+            // Posted, rather than called, so that a sink which calls back
+            // straight away does not recurse through the whole outbox.
+            replayPosted = true;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    replayPosted = false;
+                    replay();
+                }
+            });
+        }
+    }
+
+    private void evict(Batch batch) {
+        List<TrackPoint> points = batch.points;
+        int victim = 0;
+        if (batch.overflow.equals("collapse")) {
+            victim = points.size() - 2;
+        } else if (batch.overflow.equals("decimate") && points.size() > 2) {
+            // The first and last locations are always kept.
+            float nearest = Float.MAX_VALUE;
+            float[] distance = new float[1];
+            for (int i = 1; i < points.size() - 1; i += 1) {
+                TrackPoint previous = points.get(i - 1);
+                TrackPoint point = points.get(i);
+                Location.distanceBetween(
+                        previous.latitude,
+                        previous.longitude,
+                        point.latitude,
+                        point.longitude,
+                        distance
+                );
+                if (distance[0] < nearest) {
+                    nearest = distance[0];
+                    victim = i;
+                }
+            }
+        }
+        TrackPoint evicted = points.remove(victim);
+        // A location evicted while replaying stays in the outbox, so that it
+        // is tried again next time.
+        if (!restoring) {
+            outbox.ack(evicted.seq);
+        }
+        synchronized (this) {
+            dropped += 1;
+        }
+    }
+
+    private synchronized void setQueued(long queued) {
+        this.queued = queued;
+        highWater = Math.max(highWater, queued);
+    }
+
+    // Adds an entry to the session's log, which is written with its next
+    // batch of locations, or when the session is flushed.
+    void log(String sessionId, Map<String, Object> event) {
+        uploadThread.check();
+        getBatch(sessionId).events.add(event);
+    }
+
+    // Starts writing the locations left in the outbox by a previous process.
+    // Only a chunk is read at first, and the rest as the writes of earlier
+    // chunks finish, so they are never all in memory.
+    void recover() {
+        uploadThread.check();
+        restoring = true;
+        replay();
+    }
+
+    // Reads chunks from the outbox until the queue is full enough, or it is
+    // waiting for a write to finish, which will call back for more.
+    private void replay() {
+        do {
+            final List<String> sessionIds = new ArrayList<>();
+            restoring = outbox.replay(REPLAY_CHUNK, new Outbox.Visitor() {
+                @Override
+                public void onRecord(long seq, byte[] payload) {
+                    String sessionId = restore(seq, payload);
+                    if (sessionId != null && !sessionIds.contains(sessionId)) {
+                        sessionIds.add(sessionId);
+                    }
+                }
+            });
+            for (String sessionId : sessionIds) {
+                flush(sessionId);
+            }
+        } while (restoring && inFlight == 0 && queued < REPLAY_CHUNK);
+    }
+
+    // Returns the session of the restored location, or null if the record
+    // could not be read.
+    private String restore(long seq, byte[] record) {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+            String sessionId = input.readUTF();
+            long timestamp = input.readLong();
+            double latitude = input.readDouble();
+            double longitude = input.readDouble();
+            Map<String, String> fields = new HashMap<>();
+            for (int i = input.readInt(); i > 0; i -= 1) {
+                String field = input.readUTF();
+                fields.put(field, input.readBoolean() ? input.readUTF() : null);
+            }
+            String chunkId = null;
+            int chunkPosition = 0;
+            long sessionPosition = 0;
+            if (input.readBoolean()) {
+                chunkId = input.readUTF();
+                chunkPosition = input.readInt();
+                sessionPosition = input.readLong();
+            }
+            if (!batches.containsKey(sessionId)) {
+                // The session's sink is restored, and its locations are
+                // written in large batches.
+                getBatch(sessionId).size = 100;
+            }
+            TrackPoint point = new TrackPoint(timestamp, latitude, longitude, fields);
+            point.chunkId = chunkId;
+            point.chunkPosition = chunkPosition;
+            point.sessionPosition = sessionPosition;
+            point.seq = seq;
+            write(sessionId, point);
+            return sessionId;
+        } catch (IOException exception) {
+            Log.w("Upload", "Discarding unreadable outbox record", exception);
+            outbox.ack(seq);
+            return null;
+        }
+    }
+
+    // The session's sink is not saved in the record, see Sinks.
+    private static byte[] toRecord(String sessionId, TrackPoint point) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeUTF(sessionId);
+            output.writeLong(point.timestamp);
+            output.writeDouble(point.latitude);
+            output.writeDouble(point.longitude);
+            output.writeInt(point.fields.size());
+            for (Map.Entry<String, String> field : point.fields.entrySet()) {
+                output.writeUTF(field.getKey());
+                output.writeBoolean(field.getValue() != null);
+                if (field.getValue() != null) {
+                    output.writeUTF(field.getValue());
+                }
+            }
+            output.writeBoolean(point.chunkId != null);
+            if (point.chunkId != null) {
+                output.writeUTF(point.chunkId);
+                output.writeInt(point.chunkPosition);
+                output.writeLong(point.sessionPosition);
+            }
+        } catch (IOException impossible) {
+            // Writing to memory does not fail.
+        }
+        return bytes.toByteArray();
+    }
+
+    void flushAll() {
+        uploadThread.check();
+        for (String sessionId : new ArrayList<>(batches.keySet())) {
+            flush(sessionId);
+        }
+    }
+
+    // Sends every batch, then calls "done" once the writes in flight have
+    // finished, or after a timeout, so that the sinks can be shut down.
+    // Anything not sent is left in the outbox.
+    void close(Runnable done) {
+        uploadThread.check();
+        restoring = false;
+        onClosed = done;
+        flushAll();
+        if (inFlight == 0) {
+            closed();
+            return;
+        }
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                closed();
+            }
+        }, CLOSE_TIMEOUT);
+    }
+
+    private void closed() {
+        Runnable done = onClosed;
+        onClosed = null;
+        if (done != null) {
+            done.run();
+        }
+    }
+
+    // Records fields which were looked up after their location was written.
+    void patch(String sessionId, long timestamp, Map<String, String> fields) {
+        uploadThread.check();
+        Map<String, String> resolved = new HashMap<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (!LocationEnricher.PENDING.equals(field.getValue())) {
+                resolved.put(field.getKey(), TrackPoint.describe(field.getKey(), field.getValue()));
+            }
+        }
+        if (resolved.isEmpty()) {
+            return;
+        }
+        getBatch(sessionId).sink.patch(sessionId, timestamp, resolved, new LocationSink.Callback() {
+            @Override
+            public void onSuccess() {}
+
+            @Override
+            public void onFailure(Exception exception) {
+                Log.w("Upload", "Error patching location", exception);
+            }
+        });
+    }
+
+    synchronized JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("flushes", flushes);
+        stats.put("written", written);
+        stats.put("failures", failures);
+        stats.put("retries", retries);
+        stats.put("lastFlushSize", lastFlushSize);
+        stats.put("lastFlushMillis", lastFlushMillis);
+        stats.put("inFlight", inFlight);
+        stats.put("queueDepth", queued);
+        stats.put("queueHighWater", highWater);
+        stats.put("dropped", dropped);
+        stats.put("outboxPending", outbox.getPending());
+        stats.put("outboxAppended", outbox.getAppended());
+        stats.put("outboxSyncs", outbox.getSyncs());
+        stats.put("outboxReplayed", outbox.getReplayed());
+        return stats;
+    }
+
+    private Batch getBatch(String sessionId) {
+        Batch batch = batches.get(sessionId);
+        if (batch == null) {
+            batch = new Batch();
+            batch.sink = sinks.restore(sessionId);
+            batches.put(sessionId, batch);
+        }
+        return batch;
+    }
+}
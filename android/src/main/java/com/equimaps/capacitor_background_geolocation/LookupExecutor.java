@@ -0,0 +1,96 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs network lookups on a small, fixed number of threads with a bounded
+// queue. Previously each location spawned its own thread, so a slow network
+// made the thread count (and the heap) grow without limit.
+//
+// When the queue is full, the oldest queued lookup is discarded to make room
+// for the newest one. The oldest lookup belongs to the stalest location, so it
+// is the least valuable.
+class LookupExecutor {
+    // A task which needs to know if it is discarded without being run.
+    abstract static class Task implements Runnable {
+        void onDiscarded() {}
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    LookupExecutor(final String name, int threads, int queueCapacity) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                30,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                android.os.Process.setThreadPriority(
+                                        android.os.Process.THREAD_PRIORITY_BACKGROUND
+                                );
+                                runnable.run();
+                            }
+                        }, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            discard(runnable);
+                            return;
+                        }
+                        rejected.incrementAndGet();
+                        discard(executor.getQueue().poll());
+                        if (!executor.getQueue().offer(runnable)) {
+                            Logger.debug("Dropped " + name + " task");
+                            discard(runnable);
+                        }
+                    }
+                }
+        );
+        // Idle threads are not kept around between tracking sessions.
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static void discard(Runnable runnable) {
+        if (runnable instanceof Task) {
+            ((Task) runnable).onDiscarded();
+        }
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // The number of tasks waiting for a thread.
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    // The number of tasks discarded because the queue was full.
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
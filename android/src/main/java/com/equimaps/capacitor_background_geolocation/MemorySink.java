@@ -0,0 +1,143 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps locations in memory rather than sending them anywhere. It is for
+// measuring and load testing the rest of the pipeline without a backend, and
+// as a fake to make assertions against, so it can be made to take a while to
+// respond, or to fail, like a real sink. What was written is counted by the
+// writer, and reported by getUploadStats().
+//
+// Only the most recent points, events and patches are kept, up to the
+// "capacity" option each, so that a long load test does not fill the heap.
+// They are read with the getters, which may be called from any thread.
+class MemorySink implements LocationSink {
+    // A patch, as it was given.
+    static class Patch {
+        final String sessionId;
+        final long timestamp;
+        final Map<String, String> fields;
+
+        Patch(String sessionId, long timestamp, Map<String, String> fields) {
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.fields = fields;
+        }
+    }
+
+    private final Handler handler;
+    private final long latency;
+    private final int capacity;
+    private final ArrayDeque<TrackPoint> points = new ArrayDeque<>();
+    private final ArrayDeque<Map<String, Object>> events = new ArrayDeque<>();
+    private final ArrayDeque<Patch> patches = new ArrayDeque<>();
+    // The number of writes and patches still to fail.
+    private long failures;
+
+    // Calls back "latency" milliseconds after each write, on the handler. The
+    // first "failures" writes and patches fail, and are not kept.
+    MemorySink(Handler handler, Map<String, String> options) {
+        this.handler = handler;
+        latency = Sinks.getLong(options, "latency", 0);
+        capacity = (int) Math.max(0, Sinks.getLong(options, "capacity", 1000));
+        failures = Sinks.getLong(options, "failures", 0);
+    }
+
+    @Override
+    public void prewarm() {}
+
+    @Override
+    public void enqueue(String sessionId, TrackPoint point) {}
+
+    @Override
+    public void write(
+            String sessionId,
+            List<TrackPoint> points,
+            List<Map<String, Object>> events,
+            Callback callback
+    ) {
+        boolean failed;
+        synchronized (this) {
+            failed = fail();
+            if (!failed) {
+                for (TrackPoint point : points) {
+                    keep(this.points, point);
+                }
+                for (Map<String, Object> event : events) {
+                    keep(this.events, new HashMap<>(event));
+                }
+            }
+        }
+        respond(callback, failed);
+    }
+
+    @Override
+    public void patch(String sessionId, long timestamp, Map<String, String> fields, Callback callback) {
+        boolean failed;
+        synchronized (this) {
+            failed = fail();
+            if (!failed) {
+                keep(patches, new Patch(sessionId, timestamp, new HashMap<>(fields)));
+            }
+        }
+        respond(callback, failed);
+    }
+
+    @Override
+    public void close() {}
+
+    synchronized List<TrackPoint> getPoints() {
+        return new ArrayList<>(points);
+    }
+
+    synchronized List<Map<String, Object>> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    synchronized List<Patch> getPatches() {
+        return new ArrayList<>(patches);
+    }
+
+    private boolean fail() {
+        if (failures <= 0) {
+            return false;
+        }
+        failures -= 1;
+        return true;
+    }
+
+    private <T> void keep(ArrayDeque<T> kept, T value) {
+        if (capacity == 0) {
+            return;
+        }
+        if (kept.size() == capacity) {
+            kept.removeFirst();
+        }
+        kept.addLast(value);
+    }
+
+    private void respond(final Callback callback, final boolean failed) {
+        Runnable response = new Runnable() {
+            @Override
+            public void run() {
+                if (failed) {
+                    callback.onFailure(new IOException("Memory sink failed the write"));
+                } else {
+                    callback.onSuccess();
+                }
+            }
+        };
+        if (latency <= 0) {
+            response.run();
+            return;
+        }
+        handler.postDelayed(response, latency);
+    }
+}
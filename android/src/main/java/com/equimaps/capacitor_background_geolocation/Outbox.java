@@ -0,0 +1,407 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+// A log of the locations which have not been uploaded yet, kept on disk so
+// that they survive the process being killed.
+//
+// Records are appended to a file, each with a sequence number and a checksum.
+// Appends only reach the page cache; they are made durable by an fsync on a
+// background thread, which covers every record appended since the previous
+// one. Once a record is uploaded it is acknowledged. The highest sequence
+// number below which every record is acknowledged is saved at the start of a
+// second file, and the records acknowledged beyond it are appended after it,
+// so that one record which is never acknowledged does not cause everything
+// after it to be sent again. Whenever everything is acknowledged the log is
+// truncated, and if it grows large regardless, the unacknowledged records are
+// copied to a fresh log. Either way, the acknowledgements after the first are
+// no longer needed, and are cleared.
+//
+// On startup, the unacknowledged records are replayed a few at a time, as the
+// caller makes room for them, so delivery is at least once. A record torn by
+// a crash fails its checksum, and it and anything after it is discarded.
+class Outbox {
+    interface Visitor {
+        void onRecord(long seq, byte[] payload);
+    }
+
+    private interface Scanner {
+        // Returns false to stop reading.
+        boolean onRecord(long seq, byte[] payload);
+    }
+
+    // Record layout: length of the payload (4 bytes), sequence number (8
+    // bytes), CRC32 of the payload (4 bytes), payload.
+    private static final int HEADER_SIZE = 16;
+    // Acknowledgement layout: the sequence number below which every record is
+    // acknowledged, then each record acknowledged beyond it, 8 bytes each.
+    private static final int ACK_SIZE = 8;
+    private static final int MAX_PAYLOAD = 64 * 1024;
+    private static final long TRUNCATE_SIZE = 64 * 1024;
+    private static final long COMPACT_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final File ackFile;
+    private FileChannel channel = null;
+    private RandomAccessFile ack = null;
+    private boolean failed = false;
+    private long nextSeq = 1;
+    private long acked = 0;
+    // The sequence numbers appended but not yet acknowledged.
+    private final TreeSet<Long> pending = new TreeSet<>();
+    private final LookupExecutor syncer = new LookupExecutor("outbox", 1, 1);
+    private boolean syncPending = false;
+    // Raised after each compaction, so that a log which is mostly
+    // unacknowledged is not compacted over and over.
+    private long compactSize = COMPACT_SIZE;
+    // The length of the log written by previous processes, and the position
+    // of the next record to replay.
+    private long replayEnd = 0;
+    private long replayPosition = 0;
+    // The log is not compacted while it is being replayed.
+    private boolean replaying = false;
+    private long appended = 0;
+    private long syncs = 0;
+    private long replayed = 0;
+
+    Outbox(File directory) {
+        file = new File(directory, "outbox.log");
+        ackFile = new File(directory, "outbox.ack");
+    }
+
+    // Passes the next "max" unacknowledged records left by previous processes
+    // to the visitor, in order, carrying on from where the last call stopped.
+    // Returns false once they have all been visited. Records appended by this
+    // process are not visited.
+    boolean replay(final int max, final Visitor visitor) {
+        long start;
+        long end;
+        synchronized (this) {
+            if (!open() || !replaying) {
+                return false;
+            }
+            start = replayPosition;
+            end = replayEnd;
+        }
+        long position = read(start, end, new Scanner() {
+            int visited = 0;
+
+            @Override
+            public boolean onRecord(long seq, byte[] payload) {
+                synchronized (Outbox.this) {
+                    // Once the log is truncated, what follows is new.
+                    if (!replaying) {
+                        return false;
+                    }
+                    if (!pending.contains(seq)) {
+                        return true;
+                    }
+                    replayed += 1;
+                }
+                visitor.onRecord(seq, payload);
+                visited += 1;
+                return visited < max;
+            }
+        });
+        synchronized (this) {
+            // The log may have been truncated by an acknowledgement made by
+            // the visitor, which ends the replay.
+            if (replaying) {
+                replayPosition = position;
+                replaying = position < replayEnd;
+            }
+            return replaying;
+        }
+    }
+
+    // Reads the records between "start" and "limit" in the log, stopping at
+    // the first which is damaged, and returns the position after the last
+    // record read.
+    private long read(long start, long limit, Scanner scanner) {
+        long valid = start;
+        try {
+            FileInputStream stream = new FileInputStream(file);
+            stream.getChannel().position(start);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+            try {
+                CRC32 crc = new CRC32();
+                while (valid + HEADER_SIZE <= limit) {
+                    int length = input.readInt();
+                    if (length < 0 || length > MAX_PAYLOAD || valid + HEADER_SIZE + length > limit) {
+                        break;
+                    }
+                    long seq = input.readLong();
+                    int checksum = input.readInt();
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    valid += HEADER_SIZE + length;
+                    if (!scanner.onRecord(seq, payload)) {
+                        break;
+                    }
+                }
+            } catch (EOFException torn) {
+                // The last record was only partly written.
+            } finally {
+                input.close();
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not read outbox", exception);
+        }
+        return valid;
+    }
+
+    // Appends a record, returning its sequence number, or 0 if it could not
+    // be written.
+    synchronized long append(byte[] payload) {
+        if (payload.length > MAX_PAYLOAD || !open()) {
+            return 0;
+        }
+        long seq = nextSeq;
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(seq);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not append to outbox", exception);
+            return 0;
+        }
+        nextSeq += 1;
+        appended += 1;
+        pending.add(seq);
+        requestSync();
+        return seq;
+    }
+
+    synchronized void ack(long seq) {
+        if (!pending.remove(seq) || channel == null) {
+            return;
+        }
+        long watermark = pending.isEmpty() ? nextSeq - 1 : pending.first() - 1;
+        try {
+            // Losing these writes only causes records to be replayed twice,
+            // so they are not synced.
+            if (watermark > acked) {
+                acked = watermark;
+                ack.seek(0);
+                ack.writeLong(acked);
+            }
+            if (seq > acked) {
+                ack.seek(ack.length());
+                ack.writeLong(seq);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not acknowledge outbox", exception);
+        }
+        try {
+            if (pending.isEmpty() && channel.size() > TRUNCATE_SIZE) {
+                truncate();
+            } else if (!replaying && channel.size() > compactSize) {
+                compact();
+                clearAcks();
+                compactSize = Math.max(COMPACT_SIZE, channel.size() * 2);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not shrink outbox", exception);
+        }
+    }
+
+    // Only one sync is queued at a time, and it covers every append made
+    // before it runs.
+    private void requestSync() {
+        if (syncPending) {
+            return;
+        }
+        syncPending = true;
+        syncer.execute(new LookupExecutor.Task() {
+            @Override
+            public void run() {
+                FileChannel toSync;
+                synchronized (Outbox.this) {
+                    syncPending = false;
+                    toSync = channel;
+                }
+                try {
+                    toSync.force(false);
+                    synchronized (Outbox.this) {
+                        syncs += 1;
+                    }
+                } catch (IOException exception) {
+                    // The channel was replaced by a compaction, which syncs.
+                }
+            }
+
+            @Override
+            void onDiscarded() {
+                synchronized (Outbox.this) {
+                    syncPending = false;
+                }
+            }
+        });
+    }
+
+    private boolean open() {
+        if (channel != null) {
+            return true;
+        }
+        if (failed) {
+            return false;
+        }
+        try {
+            ack = new RandomAccessFile(ackFile, "rw");
+            final HashSet<Long> ackedBeyond = readAcks();
+            nextSeq = acked + 1;
+            channel = new FileOutputStream(file, true).getChannel();
+
+            // Find the unacknowledged records and the next sequence number,
+            // and drop anything after the last good record.
+            replayEnd = read(0, Long.MAX_VALUE, new Scanner() {
+                @Override
+                public boolean onRecord(long seq, byte[] payload) {
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    if (seq > acked && !ackedBeyond.contains(seq)) {
+                        pending.add(seq);
+                    }
+                    return true;
+                }
+            });
+            if (channel.size() > replayEnd) {
+                channel.truncate(replayEnd);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not open outbox", exception);
+            failed = true;
+            return false;
+        }
+        if (pending.isEmpty()) {
+            truncate();
+        } else {
+            replaying = true;
+        }
+        return true;
+    }
+
+    // Reads the acknowledgements into "acked", returning those beyond it. An
+    // acknowledgement torn by a crash is dropped.
+    private HashSet<Long> readAcks() throws IOException {
+        HashSet<Long> ackedBeyond = new HashSet<>();
+        long length = ack.length();
+        if (length < ACK_SIZE) {
+            acked = 0;
+            ack.setLength(0);
+            ack.writeLong(acked);
+            return ackedBeyond;
+        }
+        byte[] bytes = new byte[(int) (length - length % ACK_SIZE)];
+        ack.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        acked = buffer.getLong();
+        while (buffer.remaining() >= ACK_SIZE) {
+            long seq = buffer.getLong();
+            if (seq > acked) {
+                ackedBeyond.add(seq);
+            }
+        }
+        ack.setLength(bytes.length);
+        return ackedBeyond;
+    }
+
+    // Only called when nothing is pending, so nothing is left to replay.
+    private void truncate() {
+        replayEnd = 0;
+        replayPosition = 0;
+        replaying = false;
+        try {
+            // Every record in the log is acknowledged, including any which
+            // were only acknowledged beyond the watermark.
+            acked = nextSeq - 1;
+            ack.seek(0);
+            ack.writeLong(acked);
+            clearAcks();
+            channel.truncate(0);
+        } catch (IOException exception) {
+            Logger.error("Could not truncate outbox", exception);
+        }
+    }
+
+    // Drops the acknowledgements beyond the watermark, once the records they
+    // refer to have left the log.
+    private void clearAcks() throws IOException {
+        ack.setLength(ACK_SIZE);
+    }
+
+    // Copies the unacknowledged records to a new log, which replaces the old.
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        FileChannel output = new FileOutputStream(compacted).getChannel();
+        FileChannel input = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = 0;
+            long size = input.size();
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                input.read(header, position);
+                int length = header.getInt(0);
+                long seq = header.getLong(4);
+                if (pending.contains(seq)) {
+                    input.transferTo(position, HEADER_SIZE + length, output);
+                }
+                position += HEADER_SIZE + length;
+            }
+            output.force(false);
+        } finally {
+            input.close();
+            output.close();
+        }
+        channel.close();
+        boolean renamed = compacted.renameTo(file);
+        // If the rename failed, the old log is still intact.
+        channel = new FileOutputStream(file, true).getChannel();
+        if (!renamed) {
+            throw new IOException("Could not replace outbox");
+        }
+    }
+
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    synchronized long getAppended() {
+        return appended;
+    }
+
+    synchronized long getSyncs() {
+        return syncs;
+    }
+
+    synchronized long getReplayed() {
+        return replayed;
+    }
+}
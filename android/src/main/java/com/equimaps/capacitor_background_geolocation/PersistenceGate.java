@@ -0,0 +1,67 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Decides which of a watcher's locations are worth storing. Every location is
+// still passed to the watcher's callback, but a stationary device produces a
+// steady stream of jittery fixes, and network fixes can be hundreds of metres
+// out, so storing every one costs lookups and writes for nothing.
+//
+// A location is stored if it is accurate enough, and either it has moved far
+// enough from the last stored location, or its heading has changed enough, so
+// that turns are not cut short. In any case it must be newer than the last
+// stored location by the minimum interval.
+class PersistenceGate {
+    // The heading of a slow moving device is meaningless.
+    private static final float MIN_HEADING_SPEED = 1;
+
+    private final float minDistance;
+    private final long minInterval;
+    private final float maxAccuracy;
+    private final float minHeadingChange;
+    private Location last = null;
+
+    // A zero disables the corresponding rule.
+    PersistenceGate(float minDistance, long minInterval, float maxAccuracy, float minHeadingChange) {
+        this.minDistance = minDistance;
+        this.minInterval = minInterval;
+        this.maxAccuracy = maxAccuracy;
+        this.minHeadingChange = minHeadingChange;
+    }
+
+    // Returns null if the location should be stored, otherwise the name of
+    // the rule which suppressed it.
+    String check(Location location) {
+        if (maxAccuracy > 0 && (!location.hasAccuracy() || location.getAccuracy() > maxAccuracy)) {
+            return "accuracy";
+        }
+        if (last != null) {
+            long elapsed = location.getTime() - last.getTime();
+            if (elapsed <= 0) {
+                return "duplicate";
+            }
+            if (elapsed < minInterval) {
+                return "interval";
+            }
+            if (location.distanceTo(last) < minDistance && !hasTurned(location)) {
+                return "distance";
+            }
+        }
+        last = location;
+        return null;
+    }
+
+    private boolean hasTurned(Location location) {
+        if (
+            minHeadingChange <= 0 ||
+            !location.hasBearing() ||
+            !last.hasBearing() ||
+            !location.hasSpeed() ||
+            location.getSpeed() < MIN_HEADING_SPEED
+        ) {
+            return false;
+        }
+        float change = Math.abs(location.getBearing() - last.getBearing()) % 360;
+        return Math.min(change, 360 - change) >= minHeadingChange;
+    }
+}
@@ -0,0 +1,130 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Writes a session's log. Routine locations are not logged individually, as
+// that doubled the size of the session and cost a string per location.
+// Instead, the log records changes of state:
+//
+//  - "start" and "stop", when a watcher starts and stops tracking,
+//  - "gap" and "resume", when locations stop arriving for a while,
+//  - "enrichmentFailed" and "enrichmentRecovered", when a field can no
+//    longer be looked up, and when it can again,
+//
+// along with a "summary" of the locations received, written periodically.
+//
+// Like the writer, it must only be used on the upload thread.
+class SessionEvents {
+    private static class Session {
+        long gapThreshold;
+        long summaryInterval;
+        long lastTimestamp = 0;
+        long summaryStart = 0;
+        int summaryCount = 0;
+        TrackPoint lastPoint = null;
+        // The fields which could not be looked up, last time we tried.
+        final HashMap<String, Boolean> failing = new HashMap<>();
+    }
+
+    private final LocationWriter writer;
+    private final HashMap<String, Session> sessions = new HashMap<>();
+
+    SessionEvents(LocationWriter writer) {
+        this.writer = writer;
+    }
+
+    // A gap is logged if no location is received for "gapThreshold"
+    // milliseconds, and a summary every "summaryInterval" milliseconds. A
+    // summary interval of zero disables summaries.
+    void onStart(String sessionId, long gapThreshold, long summaryInterval) {
+        Session session = new Session();
+        session.gapThreshold = gapThreshold;
+        session.summaryInterval = summaryInterval;
+        sessions.put(sessionId, session);
+        log(sessionId, "start", System.currentTimeMillis(), "Tracking started");
+    }
+
+    void onStop(String sessionId) {
+        Session session = sessions.remove(sessionId);
+        if (session == null) {
+            return;
+        }
+        summarise(sessionId, session);
+        log(sessionId, "stop", System.currentTimeMillis(), "Tracking stopped");
+    }
+
+    void onLocation(String sessionId, TrackPoint point) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        if (
+            session.lastTimestamp != 0 &&
+            point.timestamp - session.lastTimestamp >= session.gapThreshold
+        ) {
+            summarise(sessionId, session);
+            long seconds = (point.timestamp - session.lastTimestamp) / 1000;
+            log(sessionId, "gap", session.lastTimestamp, "No locations received for " + seconds + "s");
+            log(sessionId, "resume", point.timestamp, "Locations resumed");
+        }
+        session.lastTimestamp = point.timestamp;
+        if (session.summaryCount == 0) {
+            session.summaryStart = point.timestamp;
+        }
+        session.summaryCount += 1;
+        session.lastPoint = point;
+        if (
+            session.summaryInterval > 0 &&
+            point.timestamp - session.summaryStart >= session.summaryInterval
+        ) {
+            summarise(sessionId, session);
+        }
+    }
+
+    // Called with the outcome of each lookup. Only changes are logged.
+    void onEnrichment(String sessionId, Map<String, String> fields) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (LocationEnricher.PENDING.equals(field.getValue())) {
+                continue;
+            }
+            boolean failed = field.getValue() == null;
+            Boolean wasFailing = session.failing.put(field.getKey(), failed);
+            if (failed && (wasFailing == null || !wasFailing)) {
+                log(sessionId, "enrichmentFailed", System.currentTimeMillis(), "Unable to ascertain " + field.getKey());
+            } else if (!failed && wasFailing != null && wasFailing) {
+                log(sessionId, "enrichmentRecovered", System.currentTimeMillis(), "Able to ascertain " + field.getKey() + " again");
+            }
+        }
+    }
+
+    private void summarise(String sessionId, Session session) {
+        if (session.summaryCount == 0) {
+            return;
+        }
+        TrackPoint last = session.lastPoint;
+        long minutes = Math.max((last.timestamp - session.summaryStart) / 60000, 1);
+        log(
+                sessionId,
+                "summary",
+                last.timestamp,
+                session.summaryCount + " locations received in the last " + minutes + " min. " +
+                "Latest location received: " + last.latitude + ":" + last.longitude +
+                ". ///what3words: " + last.fields.get("w3w")
+        );
+        session.summaryCount = 0;
+    }
+
+    private void log(String sessionId, String type, long timestamp, String text) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", type);
+        event.put("createdBy", "Guardian");
+        event.put("timestamp", timestamp);
+        event.put("text", text);
+        writer.log(sessionId, event);
+    }
+}
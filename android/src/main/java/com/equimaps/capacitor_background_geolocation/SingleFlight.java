@@ -0,0 +1,65 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Coalesces concurrent requests for the same key into a single call. The
+// first caller to join a key becomes responsible for making the call, and
+// everybody who joins before it completes shares its outcome.
+//
+// When fixes arrive faster than the what3words round trip, or several
+// watchers are active, this avoids paying for the same lookup many times.
+class SingleFlight<T> {
+    interface Listener<T> {
+        void onResult(T result);
+        void onFailure(Exception exception);
+    }
+
+    private final HashMap<Long, List<Listener<T>>> flights = new HashMap<>();
+    private long calls = 0;
+    private long saved = 0;
+
+    // Returns true if the caller should make the call, in which case it must
+    // eventually call complete or fail for the key.
+    synchronized boolean join(long key, Listener<T> listener) {
+        List<Listener<T>> listeners = flights.get(key);
+        if (listeners != null) {
+            listeners.add(listener);
+            saved += 1;
+            return false;
+        }
+        listeners = new ArrayList<>();
+        listeners.add(listener);
+        flights.put(key, listeners);
+        calls += 1;
+        return true;
+    }
+
+    void complete(long key, T result) {
+        for (Listener<T> listener : remove(key)) {
+            listener.onResult(result);
+        }
+    }
+
+    void fail(long key, Exception exception) {
+        for (Listener<T> listener : remove(key)) {
+            listener.onFailure(exception);
+        }
+    }
+
+    private synchronized List<Listener<T>> remove(long key) {
+        List<Listener<T>> listeners = flights.remove(key);
+        return listeners != null ? listeners : new ArrayList<Listener<T>>();
+    }
+
+    // The number of calls actually made.
+    synchronized long getCalls() {
+        return calls;
+    }
+
+    // The number of calls avoided by joining one already in flight.
+    synchronized long getSaved() {
+        return saved;
+    }
+}
@@ -0,0 +1,179 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Creates the sink a session's locations are sent to, by name:
+//
+//  - "firestore", the default, see FirestoreSink,
+//  - "http", see HttpSink,
+//  - "file", see FileSink,
+//  - "memory", see MemorySink.
+//
+// A sink is described by its name and a map of string options. The
+// description of each session's sink is saved, so that locations replayed
+// from the outbox after a restart are sent to the same place. Request headers
+// are left out of it, as they may hold credentials. They are kept in memory
+// by URL instead, and each request is sent with the headers most recently
+// configured for its URL, so a replayed location is sent with the current
+// credentials rather than those it was queued with.
+//
+// A session keeps its sink while it is described the same way, so that a
+// watcher added again for the session does not lose the sink's state. A sink
+// which is replaced is closed.
+//
+// Only used on the upload thread.
+class Sinks {
+    private static class Opened {
+        final String name;
+        final Map<String, String> options;
+        final LocationSink sink;
+
+        Opened(String name, Map<String, String> options, LocationSink sink) {
+            this.name = name;
+            this.options = options;
+            this.sink = sink;
+        }
+    }
+
+    private final UploadThread uploadThread;
+    private final File directory;
+    private final File descriptions;
+    // The request headers most recently configured for each URL. A map is
+    // replaced rather than changed, so it can be handed to another thread.
+    private final HashMap<String, Map<String, String>> headers = new HashMap<>();
+    // The sink open for each session.
+    private final HashMap<String, Opened> opened = new HashMap<>();
+    // Shared by every HTTP sink.
+    private final LookupExecutor httpExecutor = new LookupExecutor("sink-http", 2, 16);
+    private final HttpClient httpClient = new HttpClient(10000, 30000);
+
+    // Sinks keep their files in subdirectories of the given directory.
+    Sinks(UploadThread uploadThread, File directory) {
+        this.uploadThread = uploadThread;
+        this.directory = directory;
+        descriptions = new File(directory, "sinks");
+    }
+
+    // Creates the sink for a session, and saves its description, unless the
+    // session's sink is already described that way. Options starting with
+    // "header." are request headers, which take effect either way.
+    LocationSink create(String sessionId, String name, Map<String, String> options) {
+        Map<String, String> sinkHeaders = new HashMap<>();
+        Map<String, String> description = new HashMap<>();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("header.")) {
+                sinkHeaders.put(option.getKey().substring(7), option.getValue());
+            } else {
+                description.put(option.getKey(), option.getValue());
+            }
+        }
+        if (description.get("url") != null) {
+            headers.put(description.get("url"), sinkHeaders);
+        }
+        Opened current = opened.get(sessionId);
+        if (current != null && current.name.equals(name) && current.options.equals(description)) {
+            return current.sink;
+        }
+        if (current != null) {
+            current.sink.close();
+        }
+        save(sessionId, name, description);
+        return open(sessionId, name, description);
+    }
+
+    // Recreates the sink the session was last given, or a Firestore sink if
+    // it was never given one.
+    LocationSink restore(String sessionId) {
+        Properties saved = new Properties();
+        File file = new File(descriptions, getFileName(sessionId, ".properties"));
+        if (file.exists()) {
+            try {
+                FileInputStream input = new FileInputStream(file);
+                try {
+                    saved.load(input);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException exception) {
+                Logger.error("Could not read sink", exception);
+            }
+        }
+        Map<String, String> options = new HashMap<>();
+        for (String key : saved.stringPropertyNames()) {
+            if (key.startsWith("option.")) {
+                options.put(key.substring(7), saved.getProperty(key));
+            }
+        }
+        return open(sessionId, saved.getProperty("sink", "firestore"), options);
+    }
+
+    private void save(String sessionId, String name, Map<String, String> options) {
+        Properties description = new Properties();
+        description.setProperty("sink", name);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            description.setProperty("option." + option.getKey(), option.getValue());
+        }
+        try {
+            descriptions.mkdirs();
+            FileOutputStream output = new FileOutputStream(
+                    new File(descriptions, getFileName(sessionId, ".properties"))
+            );
+            try {
+                description.store(output, null);
+            } finally {
+                output.close();
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not save sink", exception);
+        }
+    }
+
+    private LocationSink open(String sessionId, String name, Map<String, String> options) {
+        LocationSink sink;
+        if (name.equals("http")) {
+            sink = new HttpSink(uploadThread.getExecutor(), httpExecutor, httpClient, options, headers);
+        } else if (name.equals("file")) {
+            sink = new FileSink(new File(directory, "tracks"));
+        } else if (name.equals("memory")) {
+            sink = new MemorySink(uploadThread.getHandler(), options);
+        } else {
+            sink = new FirestoreSink(uploadThread, new File(directory, "chunks"), options);
+        }
+        opened.put(sessionId, new Opened(name, options, sink));
+        return sink;
+    }
+
+    // The name of a session's file, which keeps the session ID from
+    // escaping the directory.
+    static String getFileName(String sessionId, String extension) {
+        return sessionId.replaceAll("[^A-Za-z0-9_-]", "_") + extension;
+    }
+
+    static long getLong(Map<String, String> options, String name, long fallback) {
+        String value = options.get(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException exception) {
+            return fallback;
+        }
+    }
+
+    void shutdown() {
+        for (Opened session : opened.values()) {
+            session.sink.close();
+        }
+        opened.clear();
+        httpExecutor.shutdown();
+    }
+}
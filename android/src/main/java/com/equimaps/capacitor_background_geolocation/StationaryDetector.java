@@ -0,0 +1,61 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Notices when a watcher has stopped moving. A device which sits still for an
+// hour would otherwise keep the GPS busy, and keep enriching and uploading
+// the same spot, for the whole hour.
+//
+// The device is stationary once its fixes have stayed within a radius of an
+// anchor for a window of time. Any fix outside the radius moves the anchor and
+// starts the window again. Once stationary, a fix outside the radius means the
+// device has left. The radius is widened to a fix's accuracy, so that a poor
+// fix does not count as movement.
+class StationaryDetector {
+    private final float radius;
+    private final long window;
+    private Location anchor = null;
+    private boolean stationary = false;
+
+    StationaryDetector(float radius, long window) {
+        this.radius = radius;
+        this.window = window;
+    }
+
+    // Returns true if the location makes the device stationary.
+    boolean update(Location location) {
+        if (stationary) {
+            return false;
+        }
+        if (anchor == null || isOutside(location)) {
+            anchor = location;
+            return false;
+        }
+        if (location.getTime() - anchor.getTime() < window) {
+            return false;
+        }
+        stationary = true;
+        return true;
+    }
+
+    // Returns true if the location shows that a stationary device has left.
+    boolean hasLeft(Location location) {
+        return stationary && isOutside(location);
+    }
+
+    // Starts watching for the device to stop again, from the given location,
+    // if it is known.
+    void reset(Location location) {
+        stationary = false;
+        anchor = location;
+    }
+
+    boolean isStationary() {
+        return stationary;
+    }
+
+    private boolean isOutside(Location location) {
+        float tolerance = location.hasAccuracy() ? Math.max(radius, location.getAccuracy()) : radius;
+        return location.distanceTo(anchor) > tolerance;
+    }
+}
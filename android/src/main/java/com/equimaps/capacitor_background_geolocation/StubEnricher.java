@@ -0,0 +1,30 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// A deterministic enricher which never touches the network. Its value is
+// derived from the location's grid cell, so it can stand in for a real
+// provider when testing or benchmarking the pipeline offline.
+class StubEnricher implements LocationEnricher {
+    private final String field;
+
+    StubEnricher(String field) {
+        this.field = field;
+    }
+
+    @Override
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public String peek(Location location) {
+        long cell = GridCell.id(location.getLatitude(), location.getLongitude());
+        return "stub." + (cell >>> 32) + "." + (cell & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void enrich(Location location, Callback callback) {
+        callback.onResult(peek(location));
+    }
+}
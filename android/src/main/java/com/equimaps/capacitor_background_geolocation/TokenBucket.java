@@ -0,0 +1,41 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.os.SystemClock;
+
+// Limits how often something may happen. Tokens accumulate at a fixed rate, up
+// to a minute's worth, and each permitted event spends one.
+class TokenBucket {
+    private double capacity;
+    private double tokens;
+    private double tokensPerMillisecond;
+    private long refilledAt = SystemClock.elapsedRealtime();
+    private long denied = 0;
+
+    TokenBucket(int perMinute) {
+        setRate(perMinute);
+        tokens = capacity;
+    }
+
+    synchronized void setRate(int perMinute) {
+        capacity = Math.max(perMinute, 0);
+        tokensPerMillisecond = capacity / 60000;
+        tokens = Math.min(tokens, capacity);
+    }
+
+    synchronized boolean tryAcquire() {
+        long now = SystemClock.elapsedRealtime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerMillisecond);
+        refilledAt = now;
+        if (tokens < 1) {
+            denied += 1;
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    // The number of events which were not permitted.
+    synchronized long getDenied() {
+        return denied;
+    }
+}
@@ -0,0 +1,115 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Encodes a run of locations as a compact "segment", rather than as one map
+// per location. Firestore bills every field name and value of a map, so a
+// location stored as a map costs over 100 bytes, most of it repeated.
+//
+// Latitudes and longitudes are stored as millionths of a degree (about 11cm),
+// and times in milliseconds. Each location is stored as its difference from
+// the previous one, and the differences are written with the same variable
+// length scheme as Google's encoded polylines, which uses only printable ASCII
+// characters. A location takes about 5 characters when walking with a fix
+// every second, and about 7 when the fixes are further apart, plus a byte
+// each for a repeated word and address. TrackEncoderBenchmark measures this.
+//
+// A segment is a map like
+//
+//  {
+//      t: <the time of the first location>,
+//      p: <the encoded latitude, longitude and time differences>,
+//      w: <the what3words address of each location>,
+//      a: <the address of each location>
+//  }
+//
+// where a word or address equal to its predecessor is stored as "". The
+// decoder in track.js reverses this.
+class TrackEncoder {
+    private static final double SCALE = 1e6;
+
+    static Map<String, Object> encode(List<TrackPoint> points) {
+        StringBuilder encoded = new StringBuilder(points.size() * 8);
+        List<String> words = new ArrayList<>(points.size());
+        List<String> addresses = new ArrayList<>(points.size());
+        long start = points.get(0).timestamp;
+        long lastLatitude = 0;
+        long lastLongitude = 0;
+        long lastTime = start;
+        String lastWords = null;
+        String lastAddress = null;
+        for (TrackPoint point : points) {
+            long latitude = Math.round(point.latitude * SCALE);
+            long longitude = Math.round(point.longitude * SCALE);
+            appendValue(encoded, latitude - lastLatitude);
+            appendValue(encoded, longitude - lastLongitude);
+            appendValue(encoded, point.timestamp - lastTime);
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            lastTime = point.timestamp;
+
+            String pointWords = point.getW3w();
+            words.add(pointWords.equals(lastWords) ? "" : pointWords);
+            lastWords = pointWords;
+            String pointAddress = point.getAddress();
+            addresses.add(pointAddress.equals(lastAddress) ? "" : pointAddress);
+            lastAddress = pointAddress;
+        }
+
+        Map<String, Object> segment = new HashMap<>();
+        segment.put("t", start);
+        segment.put("p", encoded.toString());
+        segment.put("w", words);
+        segment.put("a", addresses);
+        return segment;
+    }
+
+    // Decodes the "p" and "t" members of a segment into an array of
+    // latitude, longitude and time triples.
+    static double[] decode(String encoded, long start) {
+        double[] values = new double[encoded.length()];
+        int count = 0;
+        long latitude = 0;
+        long longitude = 0;
+        long time = start;
+        int[] position = {0};
+        while (position[0] < encoded.length()) {
+            latitude += readValue(encoded, position);
+            longitude += readValue(encoded, position);
+            time += readValue(encoded, position);
+            values[count] = latitude / SCALE;
+            values[count + 1] = longitude / SCALE;
+            values[count + 2] = time;
+            count += 3;
+        }
+        double[] result = new double[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
+    private static void appendValue(StringBuilder encoded, long value) {
+        // Zigzag encode, so that small negative numbers stay small.
+        long remaining = value < 0 ? ~(value << 1) : value << 1;
+        while (remaining >= 0x20) {
+            encoded.append((char) ((0x20 | (remaining & 0x1F)) + 63));
+            remaining >>>= 5;
+        }
+        encoded.append((char) (remaining + 63));
+    }
+
+    private static long readValue(String encoded, int[] position) {
+        long result = 0;
+        int shift = 0;
+        int chunk;
+        do {
+            chunk = encoded.charAt(position[0]) - 63;
+            position[0] += 1;
+            result |= (long) (chunk & 0x1F) << shift;
+            shift += 5;
+        } while (chunk >= 0x20);
+        return (result & 1) != 0 ? ~(result >>> 1) : result >>> 1;
+    }
+}
@@ -0,0 +1,51 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import java.util.Map;
+
+// A location as it is stored, along with the fields filled in by enrichers.
+class TrackPoint {
+    final long timestamp;
+    final double latitude;
+    final double longitude;
+    final Map<String, String> fields;
+    // The chunk document the location is stored in, if the session is
+    // stored in chunks. It is chosen when the location is queued, and saved
+    // with it in the outbox.
+    String chunkId = null;
+    // The location's position in its chunk and in its session, counting
+    // from 1, saved along with its chunk.
+    int chunkPosition = 0;
+    long sessionPosition = 0;
+    // The location's sequence number in the outbox, or 0 if it is not there.
+    long seq = 0;
+
+    TrackPoint(long timestamp, Location location, Map<String, String> fields) {
+        this(timestamp, location.getLatitude(), location.getLongitude(), fields);
+    }
+
+    TrackPoint(long timestamp, double latitude, double longitude, Map<String, String> fields) {
+        this.timestamp = timestamp;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.fields = fields;
+    }
+
+    // The stored value of a field, substituting a placeholder if it could not
+    // be found.
+    static String describe(String field, String value) {
+        if (value != null) {
+            return value;
+        }
+        return field.equals("address") ? "Not available when tracking" : "Unable to ascertain";
+    }
+
+    String getW3w() {
+        return describe("w3w", fields.get("w3w"));
+    }
+
+    String getAddress() {
+        return describe("address", fields.get("address"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.getcapacitor.android.BuildConfig;
+
+import java.util.concurrent.Executor;
+
+// The thread which owns everything to do with storing locations: the
+// session logs, the batches, the outbox and the calls to Firestore. Building
+// and committing writes used to happen on the main thread, where it competed
+// with the WebView.
+//
+// The upload state is not synchronized, so it must only be touched from this
+// thread. In debug builds, check() enforces that.
+class UploadThread {
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Executor executor;
+
+    UploadThread() {
+        thread = new HandlerThread("upload", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        };
+    }
+
+    void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    // Runs Task listeners on this thread, rather than the main thread.
+    Executor getExecutor() {
+        return executor;
+    }
+
+    void check() {
+        if (BuildConfig.DEBUG && Looper.myLooper() != thread.getLooper()) {
+            throw new IllegalStateException(
+                    "Upload state used from thread " + Thread.currentThread().getName()
+            );
+        }
+    }
+
+    // Runs the work already posted, then stops.
+    void quit() {
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,61 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// An in-memory, least recently used cache of what3words addresses, keyed by
+// GridCell id. A stationary or slowly walking user stays within the same cell
+// for many fixes, so most lookups never need to reach the network.
+class W3wCache {
+    private final LinkedHashMap<Long, String> entries;
+    private int capacity;
+    private long hits = 0;
+    private long misses = 0;
+
+    W3wCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > W3wCache.this.capacity;
+            }
+        };
+    }
+
+    synchronized String get(long cell) {
+        String words = entries.get(cell);
+        if (words == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return words;
+    }
+
+    // Unlike get, this neither counts as a hit or miss nor refreshes the entry.
+    synchronized boolean contains(long cell) {
+        return entries.containsKey(cell);
+    }
+
+    synchronized void put(long cell, String words) {
+        if (capacity > 0) {
+            entries.put(cell, words);
+        }
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        while (entries.size() > this.capacity) {
+            Long eldest = entries.keySet().iterator().next();
+            entries.remove(eldest);
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,212 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// A what3words cache that survives the process being killed. Tracking sessions
+// are restarted often, and they tend to revisit the same squares (home, work),
+// so it is worth remembering them on disk.
+//
+// The file is a fixed size hash table of fixed size records, memory mapped and
+// probed linearly. A lookup only reads from the mapping, so a miss allocates
+// nothing and no database is needed. Writes reach the disk through the page
+// cache, even if the process dies immediately afterwards.
+//
+// The file is opened lazily, on first use, so that it never delays startup.
+// When the table becomes too full, a compaction pass evicts the least recently
+// used half of the records.
+class W3wDiskCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x77337763;
+    private static final int VERSION = 1;
+    // Must be a power of two.
+    private static final int SLOTS = 4096;
+    private static final int MAX_LIVE = SLOTS * 3 / 4;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+    // Record layout: key (8 bytes), last used in minutes (4 bytes), length of
+    // the words (1 byte), the words encoded as UTF-8.
+    private static final int USED_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 12;
+    private static final int WORDS_OFFSET = 13;
+    private static final int MAX_WORDS_LENGTH = RECORD_SIZE - WORDS_OFFSET;
+    // Cell ids never use the top bit, so it marks a slot as occupied. This
+    // lets a zeroed slot mean "empty".
+    private static final long OCCUPIED = 1L << 63;
+
+    private final File file;
+    private MappedByteBuffer buffer = null;
+    private boolean failed = false;
+    private int live = 0;
+    private final byte[] scratch = new byte[MAX_WORDS_LENGTH];
+
+    W3wDiskCache(File file) {
+        this.file = file;
+    }
+
+    synchronized String get(long cell) {
+        if (!open()) {
+            return null;
+        }
+        int slot = find(cell | OCCUPIED);
+        if (slot < 0) {
+            return null;
+        }
+        int offset = offset(slot);
+        buffer.putInt(offset + USED_OFFSET, now());
+        int length = buffer.get(offset + LENGTH_OFFSET) & 0xFF;
+        for (int i = 0; i < length; i += 1) {
+            scratch[i] = buffer.get(offset + WORDS_OFFSET + i);
+        }
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    synchronized void put(long cell, String words) {
+        byte[] bytes = words.getBytes(UTF_8);
+        if (bytes.length > MAX_WORDS_LENGTH || !open()) {
+            return;
+        }
+        long key = cell | OCCUPIED;
+        if (find(key) < 0 && live >= MAX_LIVE) {
+            compact();
+        }
+        write(key, now(), bytes);
+    }
+
+    private boolean open() {
+        if (buffer != null) {
+            return true;
+        }
+        if (failed) {
+            return false;
+        }
+        long size = HEADER_SIZE + (long) SLOTS * RECORD_SIZE;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                // The mapping remains valid after the file is closed.
+                raf.close();
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not open what3words cache", exception);
+            failed = true;
+            return false;
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != SLOTS) {
+            clear();
+        }
+        live = buffer.getInt(12);
+        return true;
+    }
+
+    private void clear() {
+        for (int i = 0; i < HEADER_SIZE + SLOTS * RECORD_SIZE; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, SLOTS);
+        buffer.putInt(12, 0);
+        live = 0;
+    }
+
+    // Returns the slot holding the key, or -1 if it is absent.
+    private int find(long key) {
+        int slot = hash(key);
+        for (int probes = 0; probes < SLOTS; probes += 1) {
+            long stored = buffer.getLong(offset(slot));
+            if (stored == 0) {
+                return -1;
+            }
+            if (stored == key) {
+                return slot;
+            }
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        return -1;
+    }
+
+    private void write(long key, int used, byte[] words) {
+        int slot = hash(key);
+        while (true) {
+            long stored = buffer.getLong(offset(slot));
+            if (stored == 0 || stored == key) {
+                break;
+            }
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        int offset = offset(slot);
+        if (buffer.getLong(offset) == 0) {
+            live += 1;
+            buffer.putInt(12, live);
+        }
+        buffer.putInt(offset + USED_OFFSET, used);
+        buffer.put(offset + LENGTH_OFFSET, (byte) words.length);
+        for (int i = 0; i < words.length; i += 1) {
+            buffer.put(offset + WORDS_OFFSET + i, words[i]);
+        }
+        // The key is written last, so a record is never visible half written.
+        buffer.putLong(offset, key);
+    }
+
+    // Evicts the least recently used half of the records. Linear probing
+    // does not support removal in place, so the survivors are reinserted into
+    // an emptied table.
+    private void compact() {
+        long[] keys = new long[live];
+        int[] used = new int[live];
+        byte[][] words = new byte[live][];
+        int count = 0;
+        for (int slot = 0; slot < SLOTS && count < live; slot += 1) {
+            int offset = offset(slot);
+            long key = buffer.getLong(offset);
+            if (key != 0) {
+                keys[count] = key;
+                used[count] = buffer.getInt(offset + USED_OFFSET);
+                words[count] = new byte[buffer.get(offset + LENGTH_OFFSET) & 0xFF];
+                for (int i = 0; i < words[count].length; i += 1) {
+                    words[count][i] = buffer.get(offset + WORDS_OFFSET + i);
+                }
+                count += 1;
+            }
+        }
+        if (count == 0) {
+            clear();
+            return;
+        }
+        int[] sorted = Arrays.copyOf(used, count);
+        Arrays.sort(sorted);
+        int cutoff = sorted[count / 2];
+        clear();
+        for (int i = 0; i < count && live < SLOTS / 2; i += 1) {
+            if (used[i] >= cutoff) {
+                write(keys[i], used[i], words[i]);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) key & (SLOTS - 1);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 60000);
+    }
+}
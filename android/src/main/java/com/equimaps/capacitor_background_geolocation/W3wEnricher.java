@@ -0,0 +1,292 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.Logger;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+// Fills in the what3words address. A lookup is answered by the first of:
+//
+//  - an in-memory cache,
+//  - a lookup of the same cell which is already in flight,
+//  - a cache on disk,
+//  - the what3words API, subject to a rate limit and a circuit breaker.
+//
+// Each watcher looks up addresses through its own Client, with its own API
+// key, rate limit and prefetching. The caches, the lookups in flight and the
+// circuit breaker are shared by every watcher.
+class W3wEnricher {
+    private static final String API_URL = "https://api.what3words.com/v3/";
+
+    // Lookups are bounded so that a slow network can not pile up threads.
+    private final LookupExecutor executor = new LookupExecutor("w3w-lookup", 2, 16);
+    private final W3wCache cache = new W3wCache(256);
+    private final W3wDiskCache diskCache;
+    // Concurrent lookups for the same cell share a single request.
+    private final SingleFlight<String> flights = new SingleFlight<>();
+    private final HttpClient httpClient = new HttpClient(5000, 10000);
+    // Protects the what3words API when it is slow or failing.
+    private final CircuitBreaker breaker = new CircuitBreaker(5, 60000);
+    // The clients in use, and the counts of those which have been closed.
+    private final List<Client> clients = new ArrayList<>();
+    private long closedRateLimited = 0;
+    private long closedPrefetched = 0;
+    private long closedPrefetchHits = 0;
+    private long closedPrefetchWasted = 0;
+
+    // One watcher's view of the enricher.
+    class Client implements LocationEnricher {
+        private final String apiKey;
+        private final int cacheSize;
+        // Protects our quota.
+        private final TokenBucket rateLimiter;
+        private final W3wPrefetcher prefetcher;
+
+        private Client(String apiKey, int cacheSize, int requestsPerMinute) {
+            this.apiKey = apiKey;
+            this.cacheSize = cacheSize;
+            this.rateLimiter = new TokenBucket(requestsPerMinute);
+            this.prefetcher = new W3wPrefetcher(new W3wPrefetcher.Fetcher() {
+                @Override
+                public boolean isCached(long cell) {
+                    return cache.contains(cell);
+                }
+
+                @Override
+                public boolean isIdle() {
+                    return executor.getQueueDepth() == 0;
+                }
+
+                @Override
+                public void prefetch(long cell, double latitude, double longitude) {
+                    lookup(cell, latitude, longitude, Client.this, new Callback() {
+                        @Override
+                        public void onResult(String words) {}
+                    });
+                }
+            });
+        }
+
+        @Override
+        public String getField() {
+            return "w3w";
+        }
+
+        @Override
+        public String peek(Location location) {
+            long cell = GridCell.id(location.getLatitude(), location.getLongitude());
+            return cache.contains(cell) ? getCached(cell) : null;
+        }
+
+        @Override
+        public void enrich(Location location, Callback callback) {
+            // Locations within the same 3m cell share a what3words address.
+            long cell = GridCell.id(location.getLatitude(), location.getLongitude());
+            String cached = getCached(cell);
+            if (cached != null) {
+                callback.onResult(cached);
+            } else {
+                lookup(cell, location.getLatitude(), location.getLongitude(), this, callback);
+            }
+            prefetcher.onLocation(location);
+        }
+    }
+
+    // The disk cache file is not opened until the first lookup.
+    W3wEnricher(File diskCacheFile) {
+        diskCache = new W3wDiskCache(diskCacheFile);
+    }
+
+    // The memory cache holds as many addresses as the largest of the open
+    // clients' cache sizes.
+    Client open(
+            String apiKey,
+            int cacheSize,
+            int requestsPerMinute,
+            long prefetchHorizon,
+            int prefetchPerMinute
+    ) {
+        Client client = new Client(apiKey, cacheSize, requestsPerMinute);
+        client.prefetcher.configure(prefetchHorizon, prefetchPerMinute);
+        synchronized (this) {
+            clients.add(client);
+            resizeCache();
+        }
+        if (apiKey != null) {
+            // Warm up the connection while the first fix is obtained.
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        httpClient.preconnect(new URL(API_URL));
+                    } catch (MalformedURLException ignore) {}
+                }
+            });
+        }
+        return client;
+    }
+
+    synchronized void close(Client client) {
+        if (!clients.remove(client)) {
+            return;
+        }
+        closedRateLimited += client.rateLimiter.getDenied();
+        closedPrefetched += client.prefetcher.getIssued();
+        closedPrefetchHits += client.prefetcher.getHits();
+        closedPrefetchWasted += client.prefetcher.getWasted();
+        resizeCache();
+    }
+
+    private void resizeCache() {
+        int capacity = 0;
+        for (Client client : clients) {
+            capacity = Math.max(capacity, client.cacheSize);
+        }
+        if (capacity > 0) {
+            cache.setCapacity(capacity);
+        }
+    }
+
+    // A lookup counts as a prefetch hit for any client which prefetched it.
+    private String getCached(long cell) {
+        synchronized (this) {
+            for (Client client : clients) {
+                client.prefetcher.onLookup(cell);
+            }
+        }
+        return cache.get(cell);
+    }
+
+    private void lookup(
+            final long cell,
+            double latitude,
+            double longitude,
+            final Client client,
+            final LocationEnricher.Callback callback
+    ) {
+        // Build the URL
+        String urlString = API_URL + "convert-to-3wa?coordinates=" +
+                           latitude + "," + longitude + "&key=" + client.apiKey;
+        final URL url;
+        try {
+            url = new URL(urlString);
+        } catch (MalformedURLException e) {
+            Logger.error("Invalid what3words URL", e);
+            callback.onResult(null);
+            return;
+        }
+
+        // Wait for a lookup of this cell that is already in flight, if any
+        boolean leader = flights.join(cell, new SingleFlight.Listener<String>() {
+            @Override
+            public void onResult(String words) {
+                callback.onResult(words);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                // The failure has already been logged, once, by the leader.
+                callback.onResult(null);
+            }
+        });
+        if (!leader) {
+            return;
+        }
+
+        // Make the request on the lookup executor
+        executor.execute(new LookupExecutor.Task() {
+            @Override
+            public void run() {
+                // Squares resolved in earlier sessions are remembered on disk.
+                String words = diskCache.get(cell);
+                if (words == null) {
+                    if (!client.rateLimiter.tryAcquire() || !breaker.allowRequest()) {
+                        // The location is still recorded, with a marker.
+                        flights.complete(cell, LocationEnricher.PENDING);
+                        return;
+                    }
+                    try {
+                        words = request(url);
+                        breaker.onSuccess();
+                    } catch (IOException | JSONException e) {
+                        breaker.onFailure();
+                        Logger.error("what3words lookup failed", e);
+                        flights.fail(cell, e);
+                        return;
+                    }
+                    if (words != null) {
+                        diskCache.put(cell, words);
+                    }
+                }
+                if (words != null) {
+                    cache.put(cell, words);
+                }
+                flights.complete(cell, words);
+            }
+
+            @Override
+            void onDiscarded() {
+                flights.fail(cell, new RejectedExecutionException("Lookup queue is full"));
+            }
+        });
+    }
+
+    private String request(URL url) throws IOException, JSONException {
+        HttpClient.Response response = httpClient.get(url);
+        if (!response.isSuccessful()) {
+            throw new IOException("what3words responded with status " + response.status);
+        }
+
+        // Pick the words out of the JSON response
+        return W3wResponseParser.extractWords(response.body, response.length);
+    }
+
+    // Counts of the clients are summed.
+    JSObject getStats() {
+        long rateLimited;
+        long prefetched;
+        long prefetchHits;
+        long prefetchWasted;
+        synchronized (this) {
+            rateLimited = closedRateLimited;
+            prefetched = closedPrefetched;
+            prefetchHits = closedPrefetchHits;
+            prefetchWasted = closedPrefetchWasted;
+            for (Client client : clients) {
+                rateLimited += client.rateLimiter.getDenied();
+                prefetched += client.prefetcher.getIssued();
+                prefetchHits += client.prefetcher.getHits();
+                prefetchWasted += client.prefetcher.getWasted();
+            }
+        }
+        JSObject stats = new JSObject();
+        stats.put("breakerState", breaker.getState());
+        stats.put("breakerTrips", breaker.getTrips());
+        stats.put("consecutiveFailures", breaker.getFailures());
+        stats.put("rateLimited", rateLimited);
+        stats.put("cacheHits", cache.getHits());
+        stats.put("cacheMisses", cache.getMisses());
+        stats.put("lookups", flights.getCalls());
+        stats.put("coalesced", flights.getSaved());
+        stats.put("prefetched", prefetched);
+        stats.put("prefetchHits", prefetchHits);
+        stats.put("prefetchWasted", prefetchWasted);
+        stats.put("queueDepth", executor.getQueueDepth());
+        stats.put("rejected", executor.getRejectedCount());
+        return stats;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
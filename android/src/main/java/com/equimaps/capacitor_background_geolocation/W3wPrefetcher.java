@@ -0,0 +1,118 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Looks up the what3words addresses of the cells a moving device is about to
+// enter, projecting its position forward along its bearing at its current
+// speed. At vehicle speeds every fix lands in a new cell, so without this
+// almost every lookup misses the cache.
+//
+// Prefetches are only issued while the lookup queue is idle, and are limited
+// by a budget so that they can not eat the API quota. A prefetch counts as a
+// hit if a real lookup is later made for its cell, and as wasted if that does
+// not happen within twice the horizon.
+class W3wPrefetcher {
+    interface Fetcher {
+        boolean isCached(long cell);
+        boolean isIdle();
+        void prefetch(long cell, double latitude, double longitude);
+    }
+
+    private static final double EARTH_RADIUS_METRES = 6371008.8;
+    // Slower than this, the device is unlikely to leave its cell between fixes.
+    private static final float MIN_SPEED = 2;
+
+    private final Fetcher fetcher;
+    private final TokenBucket budget = new TokenBucket(30);
+    private long horizonMillis = 0;
+    // The cells which have been prefetched, and when.
+    private final LinkedHashMap<Long, Long> pending = new LinkedHashMap<>();
+    private long issued = 0;
+    private long hits = 0;
+    private long wasted = 0;
+
+    W3wPrefetcher(Fetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    // A horizon of zero disables prefetching.
+    synchronized void configure(long horizonMillis, int perMinute) {
+        this.horizonMillis = Math.max(horizonMillis, 0);
+        budget.setRate(perMinute);
+    }
+
+    synchronized void onLocation(Location location) {
+        expire();
+        if (
+                horizonMillis == 0 ||
+                !location.hasBearing() ||
+                !location.hasSpeed() ||
+                location.getSpeed() < MIN_SPEED
+        ) {
+            return;
+        }
+        double latitude = Math.toRadians(location.getLatitude());
+        double longitude = Math.toRadians(location.getLongitude());
+        double bearing = Math.toRadians(location.getBearing());
+        // One point per second of travel, matching the rate of fixes.
+        for (long ahead = 1000; ahead <= horizonMillis; ahead += 1000) {
+            double angle = location.getSpeed() * ahead / 1000 / EARTH_RADIUS_METRES;
+            double aheadLatitude = Math.asin(
+                    Math.sin(latitude) * Math.cos(angle) +
+                    Math.cos(latitude) * Math.sin(angle) * Math.cos(bearing)
+            );
+            double aheadLongitude = longitude + Math.atan2(
+                    Math.sin(bearing) * Math.sin(angle) * Math.cos(latitude),
+                    Math.cos(angle) - Math.sin(latitude) * Math.sin(aheadLatitude)
+            );
+            double lat = Math.toDegrees(aheadLatitude);
+            double lon = (Math.toDegrees(aheadLongitude) + 540) % 360 - 180;
+            long cell = GridCell.id(lat, lon);
+            if (pending.containsKey(cell) || fetcher.isCached(cell)) {
+                continue;
+            }
+            if (!fetcher.isIdle() || !budget.tryAcquire()) {
+                return;
+            }
+            pending.put(cell, SystemClock.elapsedRealtime());
+            issued += 1;
+            fetcher.prefetch(cell, lat, lon);
+        }
+    }
+
+    // Called for every real lookup.
+    synchronized void onLookup(long cell) {
+        if (pending.remove(cell) != null) {
+            hits += 1;
+        }
+    }
+
+    private void expire() {
+        long cutoff = SystemClock.elapsedRealtime() - horizonMillis * 2;
+        Iterator<Map.Entry<Long, Long>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() >= cutoff) {
+                break;
+            }
+            iterator.remove();
+            wasted += 1;
+        }
+    }
+
+    synchronized long getIssued() {
+        return issued;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getWasted() {
+        return wasted;
+    }
+}
@@ -0,0 +1,115 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+
+// Extracts the "words" member from a convert-to-3wa response, without
+// building a String of the whole body or parsing it into a JSONObject. The
+// body is scanned in place and the scan stops as soon as the words are found,
+// so the only allocation is the words themselves.
+//
+// Anything the scanner does not expect, such as an escape sequence within the
+// words or a truncated body, is handed to JSONObject instead.
+final class W3wResponseParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] KEY = {'w', 'o', 'r', 'd', 's'};
+
+    private W3wResponseParser() {}
+
+    // Returns the words, or null if the response does not contain any.
+    static String extractWords(byte[] body, int length) throws JSONException {
+        int start = skipWhitespace(body, 0, length);
+        if (start >= length || body[start] != '{') {
+            return parse(body, length);
+        }
+        int depth = 0;
+        for (int i = start; i < length; i += 1) {
+            byte b = body[i];
+            if (b == '{' || b == '[') {
+                depth += 1;
+            } else if (b == '}' || b == ']') {
+                depth -= 1;
+                if (depth == 0) {
+                    return null;
+                }
+            } else if (b == '"') {
+                int end = endOfString(body, i + 1, length);
+                if (end < 0) {
+                    return parse(body, length);
+                }
+                // A key is a string at the top level which is followed by a
+                // colon.
+                if (depth == 1 && matches(body, i + 1, end, KEY)) {
+                    int colon = skipWhitespace(body, end + 1, length);
+                    if (colon < length && body[colon] == ':') {
+                        return value(body, skipWhitespace(body, colon + 1, length), length);
+                    }
+                }
+                i = end;
+            }
+        }
+        return parse(body, length);
+    }
+
+    private static String value(byte[] body, int start, int length) throws JSONException {
+        if (start < length && body[start] == '"') {
+            int end = endOfString(body, start + 1, length);
+            if (end >= 0 && indexOf(body, start + 1, end, (byte) '\\') < 0) {
+                return new String(body, start + 1, end - start - 1, UTF_8);
+            }
+        } else if (start + 4 <= length && body[start] == 'n' && body[start + 1] == 'u' &&
+                body[start + 2] == 'l' && body[start + 3] == 'l') {
+            return null;
+        }
+        return parse(body, length);
+    }
+
+    // The slow path, used for anything unusual.
+    private static String parse(byte[] body, int length) throws JSONException {
+        return new JSONObject(new String(body, 0, length, UTF_8)).optString("words", null);
+    }
+
+    // Returns the index of the quote closing the string which starts at the
+    // given index, or -1 if the string is not terminated.
+    private static int endOfString(byte[] body, int start, int length) {
+        for (int i = start; i < length; i += 1) {
+            if (body[i] == '\\') {
+                i += 1;
+            } else if (body[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] body, int start, int length) {
+        int i = start;
+        while (i < length && (body[i] == ' ' || body[i] == '\t' || body[i] == '\n' || body[i] == '\r')) {
+            i += 1;
+        }
+        return i;
+    }
+
+    private static boolean matches(byte[] body, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i += 1) {
+            if (body[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] body, int start, int end, byte b) {
+        for (int i = start; i < end; i += 1) {
+            if (body[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,177 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Replays sampler-trace.csv the way the provider delivers it: the first fix
+// at least an interval of the request after the previous one, with the
+// provider's distance filter off, as the service asks while a sampler is
+// watching. Each fix goes through the sampler, then the watcher's distance
+// filter, as dispatch() does.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class AdaptiveSamplerTest {
+    private static final long MINUTE = 60000;
+    // When each part of the trace starts, after its first fix.
+    private static final long STILL = 10 * MINUTE;
+    private static final long DRIVING = 15 * MINUTE;
+    private static final long STOPPED = 25 * MINUTE;
+    private static final long WALKING = 35 * MINUTE;
+    private static final long END = 40 * MINUTE;
+
+    private static List<Location> trace;
+
+    @BeforeClass
+    public static void load() throws IOException {
+        trace = readTrace("sampler-trace.csv");
+    }
+
+    @Test
+    public void stepsDownOnceStopped() {
+        Replay replay = new Replay(new AdaptiveSampler(1000, 0));
+        replay.run(STOPPED);
+        assertEquals("driving", replay.sampler.getTier());
+
+        int delivered = replay.run(STOPPED + MINUTE);
+        assertEquals("still", replay.sampler.getTier());
+        assertTrue("delivered " + delivered + " fixes after stopping", delivered <= 3);
+
+        int wakeups = replay.wakeups;
+        delivered = replay.run(WALKING);
+        wakeups = replay.wakeups - wakeups;
+        assertEquals("still", replay.sampler.getTier());
+        // About one fix every 10 seconds.
+        assertTrue(wakeups <= 9 * 6 + 1);
+        // The fixes of a still device wander by several metres, so the odd
+        // one gets past the distance filter, but most do not.
+        assertTrue("delivered " + delivered + " of " + wakeups + " fixes while still", delivered * 3 < wakeups);
+
+        replay.run(END);
+        assertEquals("walking", replay.sampler.getTier());
+    }
+
+    @Test
+    public void tracksTheWalk() {
+        Replay replay = new Replay(new AdaptiveSampler(1000, 0));
+        replay.run(STILL);
+        assertEquals("walking", replay.sampler.getTier());
+        replay.run(DRIVING);
+        assertEquals("still", replay.sampler.getTier());
+    }
+
+    @Test
+    public void deliversFewerFixes() {
+        Replay adaptive = new Replay(new AdaptiveSampler(1000, 0));
+        Replay fixed = new Replay(null);
+        adaptive.run(END);
+        fixed.run(END);
+        report("adaptive", adaptive);
+        report("1s/0m", fixed);
+        assertTrue(adaptive.delivered < fixed.delivered / 2);
+        assertTrue(adaptive.wakeups < fixed.wakeups / 2);
+    }
+
+    private static void report(String name, Replay replay) {
+        System.out.println(String.format(
+                Locale.US,
+                "%-8s %5d fixes, %5d wakeups, %d tier changes",
+                name,
+                replay.delivered,
+                replay.wakeups,
+                replay.sampler == null ? 0 : replay.sampler.getChanges()
+        ));
+    }
+
+    // Each line is time, latitude, longitude, accuracy and speed, which is
+    // empty where the fix has none. Lines starting with "#" are comments.
+    private static List<Location> readTrace(String name) throws IOException {
+        List<Location> locations = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                AdaptiveSamplerTest.class.getClassLoader().getResourceAsStream(name),
+                "UTF-8"
+        ));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                Location location = new Location("fused");
+                location.setTime(Long.parseLong(columns[0]));
+                location.setLatitude(Double.parseDouble(columns[1]));
+                location.setLongitude(Double.parseDouble(columns[2]));
+                location.setAccuracy(Float.parseFloat(columns[3]));
+                if (!columns[4].isEmpty()) {
+                    location.setSpeed(Float.parseFloat(columns[4]));
+                }
+                locations.add(location);
+            }
+        } finally {
+            reader.close();
+        }
+        return locations;
+    }
+
+    private static class Replay {
+        final AdaptiveSampler sampler;
+        private int next = 0;
+        private Location woken = null;
+        private Location last = null;
+        int wakeups = 0;
+        int delivered = 0;
+
+        Replay(AdaptiveSampler sampler) {
+            this.sampler = sampler;
+        }
+
+        // Replays the trace up to the given time after its first fix,
+        // returning how many fixes were delivered to the watcher.
+        int run(long until) {
+            long start = trace.get(0).getTime();
+            int count = 0;
+            for (; next < trace.size() && trace.get(next).getTime() - start < until; next += 1) {
+                Location location = trace.get(next);
+                // The fixes are about a second apart, give or take a few
+                // milliseconds.
+                if (woken != null && location.getTime() - woken.getTime() < getInterval() - 100) {
+                    continue;
+                }
+                woken = location;
+                wakeups += 1;
+                if (sampler != null) {
+                    sampler.update(location);
+                }
+                if (DeliveryFilter.isDue(last, location, getInterval(), getDisplacement())) {
+                    last = location;
+                    count += 1;
+                }
+            }
+            delivered += count;
+            return count;
+        }
+
+        private long getInterval() {
+            return sampler == null ? 1000 : sampler.getInterval();
+        }
+
+        private float getDisplacement() {
+            return sampler == null ? 0 : sampler.getDisplacement();
+        }
+    }
+}
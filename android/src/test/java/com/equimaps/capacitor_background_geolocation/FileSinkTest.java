@@ -0,0 +1,96 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileSinkTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendsALinePerLocationEventAndPatch() throws IOException, JSONException {
+        File directory = new File(folder.getRoot(), "tracks");
+        FileSink sink = new FileSink(directory);
+        MemorySinkTest.Results results = new MemorySinkTest.Results();
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", "start");
+        event.put("timestamp", 500L);
+        sink.write("a", Arrays.asList(
+                TrackEncoderTest.point(1000, 51.520847, -0.195521, "filled.count.soap", "Bayswater"),
+                TrackEncoderTest.point(2000, 51.520861, -0.195498, "index.home.raft", "Bayswater")
+        ), Collections.singletonList(event), results);
+        sink.patch("a", 1000, Collections.singletonMap("address", "1 High Street"), results);
+        assertEquals(Arrays.asList("success", "success"), results.outcomes);
+
+        List<JSONObject> lines = read(new File(directory, "a.jsonl"));
+        assertEquals(4, lines.size());
+        assertEquals("location", lines.get(0).getString("type"));
+        assertEquals(1000, lines.get(0).getLong("timestamp"));
+        assertEquals(51.520847, lines.get(0).getDouble("latitude"), 0);
+        assertEquals(-0.195521, lines.get(0).getDouble("longitude"), 0);
+        assertEquals("filled.count.soap", lines.get(0).getString("w3w"));
+        assertEquals("index.home.raft", lines.get(1).getString("w3w"));
+        assertEquals("event", lines.get(2).getString("type"));
+        assertEquals("start", lines.get(2).getString("event"));
+        assertEquals("patch", lines.get(3).getString("type"));
+        assertEquals("1 High Street", lines.get(3).getJSONObject("resolved").getString("address"));
+    }
+
+    @Test
+    public void keepsSessionsApart() throws IOException, JSONException {
+        File directory = folder.getRoot();
+        FileSink sink = new FileSink(directory);
+        MemorySinkTest.Results results = new MemorySinkTest.Results();
+        sink.write("a", Collections.singletonList(TrackEncoderTest.point(1000, 0, 0, "a.b.c", "")),
+                Collections.<Map<String, Object>>emptyList(), results);
+        sink.write("../b", Collections.singletonList(TrackEncoderTest.point(2000, 0, 0, "a.b.c", "")),
+                Collections.<Map<String, Object>>emptyList(), results);
+        assertEquals(1, read(new File(directory, "a.jsonl")).size());
+        // The session ID cannot reach outside the directory.
+        assertTrue(new File(directory, "___b.jsonl").exists());
+        assertFalse(new File(directory.getParentFile(), "b.jsonl").exists());
+    }
+
+    @Test
+    public void failsWhenTheFileCannotBeWritten() throws IOException {
+        // A file where the directory should be.
+        File directory = folder.newFile("tracks");
+        MemorySinkTest.Results results = new MemorySinkTest.Results();
+        new FileSink(directory).write("a", Collections.singletonList(TrackEncoderTest.point(1000, 0, 0, "a.b.c", "")),
+                Collections.<Map<String, Object>>emptyList(), results);
+        assertEquals(Collections.singletonList("failure"), results.outcomes);
+    }
+
+    private static List<JSONObject> read(File file) throws IOException, JSONException {
+        List<JSONObject> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(new JSONObject(line));
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,192 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Runs the client against a local server, which tells connections apart by
+// the port they come from. A TLS handshake is made once per connection, so a
+// reused HTTPS connection is also a reused TLS session.
+public class HttpClientTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private HttpServer server;
+    private final List<Integer> ports = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile int status = 200;
+    private volatile byte[] body = "{\"words\":\"filled.count.soap\"}".getBytes(UTF_8);
+    private SSLSocketFactory defaultSocketFactory = null;
+
+    @After
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (defaultSocketFactory != null) {
+            HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory);
+        }
+    }
+
+    @Test
+    public void reusesTheConnectionForSequentialRequests() throws IOException {
+        URL url = start(HttpServer.create(address(), 0), "http");
+        HttpClient client = new HttpClient(5000, 5000);
+        for (int i = 0; i < 10; i += 1) {
+            HttpClient.Response response = client.post(url, "{}".getBytes(UTF_8),
+                    Collections.singletonMap("Authorization", "Bearer token"));
+            assertEquals(200, response.status);
+            assertEquals("{\"words\":\"filled.count.soap\"}", new String(response.body, 0, response.length, UTF_8));
+        }
+        assertEquals(10, ports.size());
+        assertEquals(1, getConnectionCount());
+    }
+
+    @Test
+    public void reusesTheConnectionAfterAnError() throws IOException {
+        URL url = start(HttpServer.create(address(), 0), "http");
+        HttpClient client = new HttpClient(5000, 5000);
+        status = 500;
+        assertEquals(500, client.post(url, "{}".getBytes(UTF_8), Collections.<String, String>emptyMap()).status);
+        status = 200;
+        assertEquals(200, client.get(url).status);
+        assertEquals(1, getConnectionCount());
+    }
+
+    @Test
+    public void sendsTheFirstRequestOnThePreconnectedConnection() throws IOException {
+        URL url = start(HttpServer.create(address(), 0), "http");
+        HttpClient client = new HttpClient(5000, 5000);
+        client.preconnect(url);
+        assertEquals(1, ports.size());
+        client.post(url, "{}".getBytes(UTF_8), Collections.<String, String>emptyMap());
+        assertEquals(1, getConnectionCount());
+    }
+
+    @Test
+    public void reusesTheTlsConnection() throws IOException, GeneralSecurityException {
+        SSLContext context = getSslContext();
+        HttpsServer https = HttpsServer.create(address(), 0);
+        https.setHttpsConfigurator(new HttpsConfigurator(context));
+        // The client takes the default factory on its first request.
+        defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+        URL url = start(https, "https");
+
+        HttpClient client = new HttpClient(5000, 5000);
+        client.preconnect(url);
+        for (int i = 0; i < 5; i += 1) {
+            assertEquals(200, client.post(url, "{}".getBytes(UTF_8), Collections.<String, String>emptyMap()).status);
+            assertEquals(200, client.get(url).status);
+        }
+        assertEquals(11, ports.size());
+        assertEquals(1, getConnectionCount());
+    }
+
+    @Test
+    public void readsBodiesLargerThanTheBuffer() throws IOException {
+        URL url = start(HttpServer.create(address(), 0), "http");
+        byte[] large = new byte[20000];
+        for (int i = 0; i < large.length; i += 1) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        body = large;
+        HttpClient.Response response = new HttpClient(5000, 5000).get(url);
+        assertEquals(large.length, response.length);
+        for (int i = 0; i < large.length; i += 1) {
+            assertEquals(large[i], response.body[i]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBodiesWhichAreTooLarge() throws IOException {
+        URL url = start(HttpServer.create(address(), 0), "http");
+        body = new byte[128 * 1024];
+        new HttpClient(5000, 5000).get(url);
+    }
+
+    private URL start(HttpServer server, String scheme) throws IOException {
+        this.server = server;
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ports.add(exchange.getRemoteAddress().getPort());
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {}
+                in.close();
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.sendResponseHeaders(status, -1);
+                } else {
+                    byte[] response = body;
+                    exchange.sendResponseHeaders(status, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        return new URL(scheme + "://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    private int getConnectionCount() {
+        Set<Integer> distinct;
+        synchronized (ports) {
+            distinct = new HashSet<>(ports);
+        }
+        assertTrue(distinct.size() > 0);
+        return distinct.size();
+    }
+
+    private static InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    // Trusts and serves the self-signed certificate for 127.0.0.1 in
+    // localhost.p12.
+    private static SSLContext getSslContext() throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        InputStream in = HttpClientTest.class.getClassLoader().getResourceAsStream("localhost.p12");
+        try {
+            store.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,228 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Runs the sink against a local server, which records each request and
+// responds with the status it is given.
+public class HttpSinkTest {
+    // Runs callbacks on the executor's thread, in place of the upload thread.
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static class Request {
+        final String path;
+        final Map<String, List<String>> headers;
+        final JSONObject body;
+
+        Request(String path, Map<String, List<String>> headers, JSONObject body) {
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private HttpServer server;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final BlockingQueue<String> outcomes = new LinkedBlockingQueue<>();
+    private final LocationSink.Callback callback = new LocationSink.Callback() {
+        @Override
+        public void onSuccess() {
+            outcomes.add("success");
+        }
+
+        @Override
+        public void onFailure(Exception exception) {
+            outcomes.add("failure: " + exception.getMessage());
+        }
+    };
+    private LookupExecutor executor;
+    private final HttpClient httpClient = new HttpClient(5000, 5000);
+    private final Map<String, Map<String, String>> headers = new HashMap<>();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    requests.add(new Request(
+                            exchange.getRequestURI().getPath(),
+                            exchange.getRequestHeaders(),
+                            new JSONObject(read(exchange.getRequestBody()))
+                    ));
+                } catch (JSONException exception) {
+                    throw new IOException(exception);
+                }
+                exchange.sendResponseHeaders(status.get(), -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        executor = new LookupExecutor("sink-http-test", 1, 4);
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    @Test
+    public void postsLocationsAndEvents() throws Exception {
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", "start");
+        sink("/track", null).write("a", Arrays.asList(
+                TrackEncoderTest.point(1000, 51.520847, -0.195521, "filled.count.soap", "Bayswater"),
+                TrackEncoderTest.point(2000, 51.520861, -0.195498, "index.home.raft", "Bayswater")
+        ), Collections.singletonList(event), callback);
+
+        assertEquals("success", outcome());
+        Request request = request();
+        assertEquals("/track", request.path);
+        assertEquals("application/json", request.headers.get("Content-type").get(0));
+        assertEquals("locations", request.body.getString("type"));
+        assertEquals("a", request.body.getString("sessionId"));
+        JSONArray locations = request.body.getJSONArray("locations");
+        assertEquals(2, locations.length());
+        assertEquals(1000, locations.getJSONObject(0).getLong("timestamp"));
+        assertEquals(51.520847, locations.getJSONObject(0).getDouble("latitude"), 0);
+        assertEquals("index.home.raft", locations.getJSONObject(1).getString("w3w"));
+        assertEquals("start", request.body.getJSONArray("events").getJSONObject(0).getString("type"));
+    }
+
+    @Test
+    public void postsEncodedSegments() throws Exception {
+        List<TrackPoint> points = Arrays.asList(
+                TrackEncoderTest.point(1700000000000L, 51.520847, -0.195521, "filled.count.soap", "Bayswater"),
+                TrackEncoderTest.point(1700000001000L, 51.520861, -0.195498, "filled.count.soap", "Bayswater")
+        );
+        sink("/track", "encoded").write("a", points, Collections.<Map<String, Object>>emptyList(), callback);
+
+        assertEquals("success", outcome());
+        JSONObject segment = request().body.getJSONArray("segments").getJSONObject(0);
+        assertEquals(TrackEncoder.encode(points).get("p"), segment.getString("p"));
+        assertEquals(1700000000000L, segment.getLong("t"));
+    }
+
+    @Test
+    public void postsPatches() throws Exception {
+        sink("/track", null).patch("a", 1000, Collections.singletonMap("w3w", "dress.shade.tiny"), callback);
+
+        assertEquals("success", outcome());
+        JSONObject body = request().body;
+        assertEquals("patch", body.getString("type"));
+        assertEquals(1000, body.getLong("timestamp"));
+        assertEquals("dress.shade.tiny", body.getJSONObject("resolved").getString("w3w"));
+    }
+
+    @Test
+    public void sendsTheCurrentHeadersForTheUrl() throws Exception {
+        LocationSink sink = sink("/track", null);
+        headers.put(url("/track"), Collections.singletonMap("Authorization", "Bearer old"));
+        sink.patch("a", 1000, Collections.singletonMap("w3w", "a.b.c"), callback);
+        assertEquals("success", outcome());
+        assertEquals("Bearer old", request().headers.get("Authorization").get(0));
+
+        // As Sinks does when the URL is configured again.
+        headers.put(url("/track"), Collections.singletonMap("Authorization", "Bearer new"));
+        sink.patch("a", 1000, Collections.singletonMap("w3w", "a.b.c"), callback);
+        assertEquals("success", outcome());
+        assertEquals("Bearer new", request().headers.get("Authorization").get(0));
+
+        headers.clear();
+        sink.patch("a", 1000, Collections.singletonMap("w3w", "a.b.c"), callback);
+        assertEquals("success", outcome());
+        assertNull(request().headers.get("Authorization"));
+    }
+
+    @Test
+    public void failsOnAnErrorStatus() throws Exception {
+        status.set(500);
+        sink("/track", null).write("a", Collections.singletonList(TrackEncoderTest.point(1000, 0, 0, "a.b.c", "")),
+                Collections.<Map<String, Object>>emptyList(), callback);
+        assertEquals("failure: Sink responded with status 500", outcome());
+    }
+
+    @Test
+    public void failsWhenTheServerCannotBeReached() throws Exception {
+        String url = url("/track");
+        server.stop(0);
+        Map<String, String> options = new HashMap<>();
+        options.put("url", url);
+        new HttpSink(DIRECT, executor, httpClient, options, headers).patch(
+                "a", 1000, Collections.singletonMap("w3w", "a.b.c"), callback
+        );
+        assertTrue(outcome().startsWith("failure"));
+    }
+
+    private LocationSink sink(String path, String format) {
+        Map<String, String> options = new HashMap<>();
+        options.put("url", url(path));
+        if (format != null) {
+            options.put("format", format);
+        }
+        return new HttpSink(DIRECT, executor, httpClient, options, headers);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private String outcome() throws InterruptedException {
+        String outcome = outcomes.poll(10, TimeUnit.SECONDS);
+        assertTrue("no callback", outcome != null);
+        return outcome;
+    }
+
+    private Request request() throws InterruptedException {
+        Request request = requests.poll(10, TimeUnit.SECONDS);
+        assertTrue("no request", request != null);
+        return request;
+    }
+
+    static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
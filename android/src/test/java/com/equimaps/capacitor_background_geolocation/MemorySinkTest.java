@@ -0,0 +1,91 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemorySinkTest {
+    @Test
+    public void keepsWhatWasWritten() {
+        MemorySink sink = new MemorySink(null, new HashMap<String, String>());
+        Results results = new Results();
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", "start");
+        sink.write("a", Arrays.asList(
+                TrackEncoderTest.point(1000, 51.5, -0.2, "filled.count.soap", "Bayswater"),
+                TrackEncoderTest.point(2000, 51.6, -0.1, "index.home.raft", "Bayswater")
+        ), Collections.singletonList(event), results);
+        sink.patch("a", 1000, Collections.singletonMap("w3w", "dress.shade.tiny"), results);
+
+        assertEquals(Arrays.asList("success", "success"), results.outcomes);
+        List<TrackPoint> points = sink.getPoints();
+        assertEquals(2, points.size());
+        assertEquals(1000, points.get(0).timestamp);
+        assertEquals("index.home.raft", points.get(1).getW3w());
+        assertEquals("start", sink.getEvents().get(0).get("type"));
+        MemorySink.Patch patch = sink.getPatches().get(0);
+        assertEquals("a", patch.sessionId);
+        assertEquals(1000, patch.timestamp);
+        assertEquals("dress.shade.tiny", patch.fields.get("w3w"));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecent() {
+        Map<String, String> options = new HashMap<>();
+        options.put("capacity", "3");
+        MemorySink sink = new MemorySink(null, options);
+        Results results = new Results();
+        for (int i = 0; i < 5; i += 1) {
+            sink.write("a", Collections.singletonList(TrackEncoderTest.point(i, 0, 0, "a.b.c", "")),
+                    Collections.<Map<String, Object>>emptyList(), results);
+        }
+        List<TrackPoint> points = sink.getPoints();
+        assertEquals(3, points.size());
+        assertEquals(2, points.get(0).timestamp);
+        assertEquals(4, points.get(2).timestamp);
+    }
+
+    @Test
+    public void failsTheFirstWrites() {
+        Map<String, String> options = new HashMap<>();
+        options.put("failures", "2");
+        MemorySink sink = new MemorySink(null, options);
+        Results results = new Results();
+        for (int i = 0; i < 3; i += 1) {
+            sink.write("a", Collections.singletonList(TrackEncoderTest.point(i, 0, 0, "a.b.c", "")),
+                    Collections.<Map<String, Object>>emptyList(), results);
+        }
+        assertEquals(Arrays.asList("failure", "failure", "success"), results.outcomes);
+        assertEquals(1, sink.getPoints().size());
+        assertEquals(2, sink.getPoints().get(0).timestamp);
+    }
+
+    @Test
+    public void returnsCopies() {
+        MemorySink sink = new MemorySink(null, new HashMap<String, String>());
+        sink.getPoints().add(TrackEncoderTest.point(0, 0, 0, "a.b.c", ""));
+        assertTrue(sink.getPoints().isEmpty());
+    }
+
+    static class Results implements LocationSink.Callback {
+        final List<String> outcomes = new ArrayList<>();
+
+        @Override
+        public void onSuccess() {
+            outcomes.add("success");
+        }
+
+        @Override
+        public void onFailure(Exception exception) {
+            outcomes.add("failure");
+        }
+    }
+}
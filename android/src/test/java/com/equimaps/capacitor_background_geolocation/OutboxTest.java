@@ -0,0 +1,224 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Each restart is a new Outbox over the same directory, as a new process
+// would open it.
+public class OutboxTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysWhatWasNotAcknowledged() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 10; i += 1) {
+            seqs.add(outbox.append(payload(i, 16)));
+        }
+        for (int i = 0; i < 6; i += 1) {
+            outbox.ack(seqs.get(i));
+        }
+        assertEquals(4, outbox.getPending());
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        assertEquals(Arrays.asList(6, 7, 8, 9), replayAll(restarted, 100));
+        assertEquals(4, restarted.getPending());
+    }
+
+    @Test
+    public void doesNotReplayWhatWasAcknowledgedAfterAPendingRecord() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 1) {
+            seqs.add(outbox.append(payload(i, 16)));
+        }
+        // The second record is never acknowledged, which used to pin the
+        // watermark, so that everything after it was replayed.
+        for (int i = 0; i < seqs.size(); i += 1) {
+            if (i != 1 && i != 500) {
+                outbox.ack(seqs.get(i));
+            }
+        }
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        assertEquals(Arrays.asList(1, 500), replayAll(restarted, 100));
+    }
+
+    @Test
+    public void appendsAfterARestartDoNotReuseSequenceNumbers() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        long first = outbox.append(payload(0, 16));
+        long second = outbox.append(payload(1, 16));
+        outbox.ack(second);
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        long third = restarted.append(payload(2, 16));
+        assertTrue(third > second);
+        assertEquals(Arrays.asList(0), replayAll(restarted, 100));
+        restarted.ack(first);
+        restarted.ack(third);
+        assertEquals(0, restarted.getPending());
+
+        assertEquals(new ArrayList<Integer>(), replayAll(new Outbox(folder.getRoot()), 100));
+    }
+
+    @Test
+    public void discardsATornTail() throws IOException {
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < 5; i += 1) {
+            outbox.append(payload(i, 100));
+        }
+        // Cut the last record short, as a crash part way through writing it
+        // would.
+        File log = new File(folder.getRoot(), "outbox.log");
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(file.length() - 30);
+        file.close();
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        assertEquals(Arrays.asList(0, 1, 2, 3), replayAll(restarted, 100));
+        // Anything appended afterwards is readable.
+        restarted.append(payload(5, 100));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 5), replayAll(new Outbox(folder.getRoot()), 100));
+    }
+
+    @Test
+    public void discardsACorruptRecordAndWhatFollows() throws IOException {
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < 5; i += 1) {
+            outbox.append(payload(i, 100));
+        }
+        // Flip a byte in the payload of the third record.
+        File log = new File(folder.getRoot(), "outbox.log");
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.seek(2 * (16 + 100) + 16 + 50);
+        file.write(0xFF);
+        file.close();
+
+        assertEquals(Arrays.asList(0, 1), replayAll(new Outbox(folder.getRoot()), 100));
+    }
+
+    @Test
+    public void compactsALogWhichIsMostlyAcknowledged() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        long kept = outbox.append(payload(0, 1000));
+        for (int i = 1; i < 2000; i += 1) {
+            outbox.ack(outbox.append(payload(i, 1000)));
+        }
+        File log = new File(folder.getRoot(), "outbox.log");
+        File acks = new File(folder.getRoot(), "outbox.ack");
+        assertTrue("log is " + log.length() + " bytes", log.length() < 1024 * 1024);
+        assertTrue("acks are " + acks.length() + " bytes", acks.length() < 2000 * 8);
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        assertEquals(Arrays.asList(0), replayAll(restarted, 100));
+        restarted.ack(kept);
+        assertEquals(0, restarted.getPending());
+    }
+
+    @Test
+    public void truncatesOnceEverythingIsAcknowledged() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 100; i += 1) {
+            seqs.add(outbox.append(payload(i, 1000)));
+        }
+        for (long seq : seqs) {
+            outbox.ack(seq);
+        }
+        assertEquals(0, new File(folder.getRoot(), "outbox.log").length());
+        assertEquals(8, new File(folder.getRoot(), "outbox.ack").length());
+    }
+
+    @Test
+    public void replaysInChunks() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < 450; i += 1) {
+            outbox.append(payload(i, 16));
+        }
+
+        Outbox restarted = new Outbox(folder.getRoot());
+        final List<Integer> visited = new ArrayList<>();
+        Outbox.Visitor visitor = new Outbox.Visitor() {
+            @Override
+            public void onRecord(long seq, byte[] payload) {
+                visited.add(index(payload));
+            }
+        };
+        assertTrue(restarted.replay(200, visitor));
+        assertEquals(200, visited.size());
+        // Records appended meanwhile are not replayed.
+        restarted.append(payload(1000, 16));
+        assertTrue(restarted.replay(200, visitor));
+        assertEquals(400, visited.size());
+        assertFalse(restarted.replay(200, visitor));
+        assertEquals(450, visited.size());
+        for (int i = 0; i < visited.size(); i += 1) {
+            assertEquals(i, (int) visited.get(i));
+        }
+        assertEquals(450, restarted.getReplayed());
+    }
+
+    @Test
+    public void stopsReplayingOnceTruncated() {
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < 300; i += 1) {
+            outbox.append(payload(i, 1000));
+        }
+
+        // Acknowledging every record as it is visited truncates the log part
+        // way through the replay.
+        final Outbox restarted = new Outbox(folder.getRoot());
+        final List<Integer> visited = new ArrayList<>();
+        Outbox.Visitor visitor = new Outbox.Visitor() {
+            @Override
+            public void onRecord(long seq, byte[] payload) {
+                visited.add(index(payload));
+                restarted.ack(seq);
+            }
+        };
+        while (restarted.replay(100, visitor)) {
+            restarted.append(payload(1000 + visited.size(), 1000));
+        }
+        assertEquals(300, visited.size());
+        for (int i = 0; i < visited.size(); i += 1) {
+            assertEquals(i, (int) visited.get(i));
+        }
+    }
+
+    private static List<Integer> replayAll(Outbox outbox, int max) {
+        final List<Integer> visited = new ArrayList<>();
+        Outbox.Visitor visitor = new Outbox.Visitor() {
+            @Override
+            public void onRecord(long seq, byte[] payload) {
+                visited.add(index(payload));
+            }
+        };
+        while (outbox.replay(max, visitor)) {
+            assertTrue(visited.size() <= 100000);
+        }
+        return visited;
+    }
+
+    private static byte[] payload(int index, int size) {
+        return ByteBuffer.allocate(size).putInt(index).array();
+    }
+
+    private static int index(byte[] payload) {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+}
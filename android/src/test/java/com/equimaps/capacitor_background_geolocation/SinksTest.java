@@ -0,0 +1,72 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SinksTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsTheSinkWhileItIsDescribedTheSameWay() {
+        Sinks sinks = new Sinks(new UploadThread(), folder.getRoot());
+        LocationSink sink = sinks.create("a", "memory", options("latency", "0", "header.Authorization", "Bearer old"));
+        assertSame(sink, sinks.create("a", "memory", options("latency", "0", "header.Authorization", "Bearer new")));
+        assertNotSame(sink, sinks.create("a", "memory", options("latency", "10")));
+        assertNotSame(sink, sinks.create("b", "memory", options("latency", "0")));
+    }
+
+    @Test
+    public void keepsTheRestoredSinkWhenItIsDescribedTheSameWay() {
+        new Sinks(new UploadThread(), folder.getRoot()).create("a", "file", options("format", "encoded"));
+
+        Sinks restarted = new Sinks(new UploadThread(), folder.getRoot());
+        LocationSink sink = restarted.restore("a");
+        assertEquals(FileSink.class, sink.getClass());
+        assertSame(sink, restarted.create("a", "file", options("format", "encoded")));
+        assertNotSame(sink, restarted.create("a", "memory", options("format", "encoded")));
+    }
+
+    // A closed sink picks up where it left off, from its saved state.
+    @Test
+    public void carriesOnInTheSameChunkOnceClosed() {
+        Map<String, String> options = options("storage", "chunks", "chunkDuration", "3600000", "chunkSize", "10");
+        FirestoreSink sink = new FirestoreSink(new UploadThread(), folder.getRoot(), options);
+        long start = 3600000L * 1000;
+        TrackPoint point = null;
+        for (int i = 0; i < 15; i += 1) {
+            point = point(start + i * 1000);
+            sink.enqueue("a", point);
+        }
+        sink.close();
+        sink.close();
+        for (int i = 15; i < 21; i += 1) {
+            point = point(start + i * 1000);
+            sink.enqueue("a", point);
+        }
+        assertEquals(String.format(Locale.US, "%013d-002", start), point.chunkId);
+        assertEquals(1, point.chunkPosition);
+        assertEquals(21, point.sessionPosition);
+    }
+
+    private static TrackPoint point(long timestamp) {
+        return new TrackPoint(timestamp, 51.5, -0.1, new HashMap<String, String>());
+    }
+
+    private static Map<String, String> options(String... pairs) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            options.put(pairs[i], pairs[i + 1]);
+        }
+        return options;
+    }
+}
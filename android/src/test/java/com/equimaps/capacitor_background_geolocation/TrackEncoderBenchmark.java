@@ -0,0 +1,160 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.google.firebase.firestore.GeoPoint;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+// Compares the size of a segment with the size of the maps it replaces, as
+// Firestore counts them, for tracks sampled as the adaptive tiers and the
+// default request sample them, and the time taken to build each. The figures
+// are reported, and the segment is only checked to be the smaller.
+public class TrackEncoderBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int POINTS = 1000;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+    // Metres per degree of latitude.
+    private static final double METRES = 111320;
+    private static final String[] WORDS = {
+        "filled", "count", "soap", "index", "home", "raft", "dress", "shade",
+        "tiny", "limit", "broom", "crate", "spoons", "mystery", "glare"
+    };
+
+    @Test
+    public void compareWithMaps() {
+        System.out.println("track              chars/point  segment B/point  maps B/point");
+        measure("walking 1s", 1.4, 1000);
+        measure("walking 5s", 1.4, 5000);
+        measure("cycling 2s", 5, 2000);
+        measure("driving 1s", 15, 1000);
+    }
+
+    private static void measure(String name, double speed, long interval) {
+        List<TrackPoint> points = track(speed, interval);
+        Map<String, Object> segment = TrackEncoder.encode(points);
+        long segmentSize = getSize(segment);
+        long mapsSize = 0;
+        for (Object location : FirestoreSink.toLocations(points)) {
+            mapsSize += getSize(location);
+        }
+        System.out.println(String.format(
+                Locale.US,
+                "%-18s %11.1f %16.1f %13.1f",
+                name,
+                (double) ((String) segment.get("p")).length() / POINTS,
+                (double) segmentSize / POINTS,
+                (double) mapsSize / POINTS
+        ));
+        assertTrue(segmentSize < mapsSize);
+    }
+
+    @Test
+    public void compareTimeWithMaps() {
+        final List<TrackPoint> points = track(1.4, 1000);
+        Builder encoder = new Builder() {
+            @Override
+            public int build() {
+                return ((String) TrackEncoder.encode(points).get("p")).length();
+            }
+        };
+        Builder maps = new Builder() {
+            @Override
+            public int build() {
+                return FirestoreSink.toLocations(points).length;
+            }
+        };
+        measureTime("segment", encoder);
+        measureTime("maps", maps);
+    }
+
+    private interface Builder {
+        int build();
+    }
+
+    private static void measureTime(String name, Builder builder) {
+        long result = 0;
+        for (int i = 0; i < WARMUP; i += 1) {
+            result += builder.build();
+        }
+        long allocated = W3wResponseParserBenchmark.getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i += 1) {
+            result += builder.build();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = W3wResponseParserBenchmark.getAllocatedBytes() - allocated;
+        System.out.println(String.format(
+                Locale.US,
+                "%-8s %8.1f ns/point %8d B/point (%d)",
+                name,
+                (double) elapsed / ITERATIONS / POINTS,
+                allocated / ITERATIONS / POINTS,
+                result
+        ));
+    }
+
+    // A track heading roughly north east at the given speed, in metres per
+    // second. The words change with each 3 metre square and the address every
+    // 100 metres.
+    private static List<TrackPoint> track(double speed, long interval) {
+        Random random = new Random(1);
+        List<TrackPoint> points = new ArrayList<>();
+        double north = 0;
+        double east = 0;
+        double heading = Math.PI / 4;
+        for (int i = 0; i < POINTS; i += 1) {
+            double distance = speed * interval / 1000;
+            heading += (random.nextDouble() - 0.5) * 0.5;
+            north += distance * Math.cos(heading);
+            east += distance * Math.sin(heading);
+            long square = Math.round(north / 3) * 100003 + Math.round(east / 3);
+            String words = WORDS[(int) Math.abs(square % WORDS.length)] + "." +
+                    WORDS[(int) Math.abs(square / 7 % WORDS.length)] + "." +
+                    WORDS[(int) Math.abs(square / 49 % WORDS.length)];
+            String address = (Math.round(north / 100) + Math.round(east / 100)) + " High Street, London";
+            points.add(TrackEncoderTest.point(
+                    1700000000000L + i * interval,
+                    51.5 + north / METRES,
+                    -0.2 + east / (METRES * Math.cos(Math.toRadians(51.5))),
+                    words,
+                    address
+            ));
+        }
+        return points;
+    }
+
+    // The storage size of a value, by Firestore's rules.
+    private static long getSize(Object value) {
+        if (value instanceof String) {
+            return ((String) value).getBytes(UTF_8).length + 1;
+        }
+        if (value instanceof Long || value instanceof Double) {
+            return 8;
+        }
+        if (value instanceof GeoPoint) {
+            return 16;
+        }
+        long size = 0;
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += getSize(entry.getKey()) + getSize(entry.getValue());
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                size += getSize(element);
+            }
+        } else {
+            throw new IllegalArgumentException(String.valueOf(value));
+        }
+        return size;
+    }
+}
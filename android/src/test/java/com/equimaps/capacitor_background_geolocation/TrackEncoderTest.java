@@ -0,0 +1,92 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TrackEncoderTest {
+    @Test
+    public void roundTrips() {
+        Random random = new Random(1);
+        List<TrackPoint> points = new ArrayList<>();
+        double latitude = -0.001;
+        double longitude = 179.999;
+        long time = 1700000000000L;
+        for (int i = 0; i < 1000; i += 1) {
+            // Mostly small steps, with the odd jump across the equator or the
+            // antimeridian, or a long gap.
+            if (i % 100 == 99) {
+                latitude = -latitude;
+                longitude = longitude > 0 ? -179.999 : 179.999;
+                time += 86400000L * 3;
+            } else {
+                latitude += (random.nextDouble() - 0.5) * 0.001;
+                longitude += (random.nextDouble() - 0.5) * 0.001;
+                time += random.nextInt(3000);
+            }
+            points.add(point(time, latitude, longitude, "a.b.c", "Street"));
+        }
+
+        Map<String, Object> segment = TrackEncoder.encode(points);
+        double[] decoded = TrackEncoder.decode((String) segment.get("p"), (Long) segment.get("t"));
+        assertEquals(points.size() * 3, decoded.length);
+        for (int i = 0; i < points.size(); i += 1) {
+            TrackPoint point = points.get(i);
+            assertEquals(point.latitude, decoded[i * 3], 0.5e-6);
+            assertEquals(point.longitude, decoded[i * 3 + 1], 0.5e-6);
+            assertEquals(point.timestamp, (long) decoded[i * 3 + 2]);
+        }
+    }
+
+    @Test
+    public void storesRepeatsAsEmpty() {
+        Map<String, Object> segment = TrackEncoder.encode(Arrays.asList(
+                point(0, 0, 0, "filled.count.soap", "1 High Street"),
+                point(1000, 0, 0, "filled.count.soap", "1 High Street"),
+                point(2000, 0, 0, "index.home.raft", "1 High Street"),
+                point(3000, 0, 0, "filled.count.soap", "2 High Street")
+        ));
+        assertEquals(Arrays.asList("filled.count.soap", "", "index.home.raft", "filled.count.soap"),
+                segment.get("w"));
+        assertEquals(Arrays.asList("1 High Street", "", "", "2 High Street"), segment.get("a"));
+    }
+
+    // The same segment is decoded by track.test.mjs, so that the two stay in
+    // step.
+    @Test
+    public void matchesTrackJs() {
+        Map<String, Object> segment = TrackEncoder.encode(Arrays.asList(
+                point(1700000000000L, 51.520847, -0.195521, "filled.count.soap", "Bayswater"),
+                point(1700000001000L, 51.520861, -0.195498, "filled.count.soap", "Bayswater"),
+                point(1700000003500L, 51.520803, -0.195602, "index.home.raft", "Bayswater"),
+                point(1700086400000L, -33.856784, 151.215297, "dress.shade.tiny", "Sydney")
+        ));
+        assertEquals(1700000000000L, segment.get("t"));
+        assertEquals("}sqgaB`{|J?[m@o}@rBnEg{Cdb`zaDelkx_HgdfxcD", segment.get("p"));
+        assertArrayEquals(
+                new double[] {
+                    51.520847, -0.195521, 1700000000000L,
+                    51.520861, -0.195498, 1700000001000L,
+                    51.520803, -0.195602, 1700000003500L,
+                    -33.856784, 151.215297, 1700086400000L
+                },
+                TrackEncoder.decode((String) segment.get("p"), 1700000000000L),
+                1e-9
+        );
+    }
+
+    static TrackPoint point(long time, double latitude, double longitude, String words, String address) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("w3w", words);
+        fields.put("address", address);
+        return new TrackPoint(time, latitude, longitude, fields);
+    }
+}
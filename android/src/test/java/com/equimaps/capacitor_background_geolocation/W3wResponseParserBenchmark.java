@@ -0,0 +1,76 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+
+// Compares the scanner with the way responses used to be read, by turning the
+// stream into a String with a Scanner and parsing that into a JSONObject. The
+// figures are only reported, as they depend on the machine.
+public class W3wResponseParserBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void compareWithFullParse() throws JSONException {
+        final byte[] body = W3wResponseParserTest.SUCCESS.getBytes(W3wResponseParserTest.UTF_8);
+        Parser scanner = new Parser() {
+            @Override
+            public String parse() throws JSONException {
+                return W3wResponseParser.extractWords(body, body.length);
+            }
+        };
+        Parser full = new Parser() {
+            @Override
+            public String parse() throws JSONException {
+                Scanner s = new Scanner(new ByteArrayInputStream(body), "UTF-8").useDelimiter("\\A");
+                return new JSONObject(s.hasNext() ? s.next() : "").optString("words", null);
+            }
+        };
+        assertEquals(full.parse(), scanner.parse());
+        measure("scanner", scanner);
+        measure("full parse", full);
+    }
+
+    private interface Parser {
+        String parse() throws JSONException;
+    }
+
+    private static void measure(String name, Parser parser) throws JSONException {
+        int length = 0;
+        for (int i = 0; i < WARMUP; i += 1) {
+            length += parser.parse().length();
+        }
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i += 1) {
+            length += parser.parse().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println(String.format(
+                Locale.US,
+                "%-10s %8.0f ns/op %8d B/op (%d)",
+                name,
+                (double) elapsed / ITERATIONS,
+                allocated / ITERATIONS,
+                length
+        ));
+    }
+
+    // The bytes allocated by this thread so far, where the JVM says.
+    static long getAllocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
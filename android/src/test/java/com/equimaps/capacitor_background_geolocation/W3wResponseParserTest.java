@@ -0,0 +1,85 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class W3wResponseParserTest {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // A convert-to-3wa response, as what3words sends it.
+    static final String SUCCESS = "{\"country\":\"GB\",\"square\":{\"southwest\":" +
+            "{\"lng\":-0.195543,\"lat\":51.520833},\"northeast\":{\"lng\":-0.195499," +
+            "\"lat\":51.52086}},\"nearestPlace\":\"Bayswater, London\",\"coordinates\":" +
+            "{\"lng\":-0.195521,\"lat\":51.520847},\"words\":\"filled.count.soap\"," +
+            "\"language\":\"en\",\"locale\":null,\"map\":\"https://w3w.co/filled.count.soap\"}";
+
+    @Test
+    public void findsTheWords() throws JSONException {
+        assertEquals("filled.count.soap", extract(SUCCESS));
+    }
+
+    @Test
+    public void skipsWordsWhichAreNotTopLevel() throws JSONException {
+        String body = "{\"suggestion\":{\"words\":\"index.home.raft\"},\"list\":[{\"words\":\"a.b.c\"}]," +
+                "\"words\":\"filled.count.soap\"}";
+        assertEquals("filled.count.soap", extract(body));
+    }
+
+    @Test
+    public void skipsStringsWhichAreNotKeys() throws JSONException {
+        String body = "{\"nearestPlace\":\"words\",\"note\":\"a \\\"words\\\" b\",\"words\" : \"filled.count.soap\"}";
+        assertEquals("filled.count.soap", extract(body));
+    }
+
+    @Test
+    public void decodesEscapedWords() throws JSONException {
+        assertEquals("filled.count.so\u00e1p", extract("{\"words\":\"filled.count.so\\u00e1p\"}"));
+        assertEquals("filled.\"count\".soap", extract("{\"words\":\"filled.\\\"count\\\".soap\"}"));
+    }
+
+    @Test
+    public void decodesOtherLanguages() throws JSONException {
+        assertEquals("\u0438\u043d\u0434\u0435\u043a\u0441.\u0434\u043e\u043c.\u043f\u043b\u043e\u0442",
+                extract("{\"words\":\"\u0438\u043d\u0434\u0435\u043a\u0441.\u0434\u043e\u043c.\u043f\u043b\u043e\u0442\"}"));
+    }
+
+    @Test
+    public void readsOnlyTheLength() throws JSONException {
+        byte[] body = "{\"words\":\"filled.count.soap\"}".getBytes(UTF_8);
+        byte[] buffer = Arrays.copyOf(body, body.length + 32);
+        Arrays.fill(buffer, body.length, buffer.length, (byte) '}');
+        assertEquals("filled.count.soap", W3wResponseParser.extractWords(buffer, body.length));
+    }
+
+    @Test
+    public void returnsNullForAnError() throws JSONException {
+        assertNull(extract("{\"error\":{\"code\":\"BadCoordinates\"," +
+                "\"message\":\"latitude must be >=-90 and <= 90\"}}"));
+    }
+
+    @Test
+    public void returnsNullForNullWords() throws JSONException {
+        assertNull(extract("{\"words\":null}"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsATruncatedBody() throws JSONException {
+        extract(SUCCESS.substring(0, SUCCESS.indexOf("soap")));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsABodyWhichIsNotAnObject() throws JSONException {
+        extract("<html>Bad Gateway</html>");
+    }
+
+    private static String extract(String body) throws JSONException {
+        byte[] bytes = body.getBytes(UTF_8);
+        return W3wResponseParser.extractWords(bytes, bytes.length);
+    }
+}
@@ -1,11 +1,118 @@
+import {PluginListenerHandle} from "@capacitor/core";
+
 export interface WatcherOptions {
+    // Durations are in milliseconds and distances in metres, unless noted.
+    // A zero disables the option, where that makes sense.
+
+    // The what3words API key. Without it, no what3words lookups are made.
     w3wAPIKey: string,
+    // Locations are stored under this session. Without it, they are only
+    // passed to the callback.
     sessionId: string,
     backgroundMessage?: string;
     backgroundTitle?: string;
     requestPermissions?: boolean;
     stale?: boolean;
+    // The least distance between locations, in metres. Defaults to 0.
     distanceFilter?: number;
+
+    // The options below are only read on Android. iOS ignores them.
+
+    // The number of what3words squares remembered in memory. Defaults to 256.
+    w3wCacheSize?: number;
+    // The most what3words requests made in a minute. Defaults to 60.
+    w3wRequestsPerMinute?: number;
+    // Whether a location is stored once it has been enriched ("inline"),
+    // straight away and patched later ("deferred"), or straight away with
+    // only the most recent location patched ("latest"). Defaults to "inline".
+    w3wMode?: "inline" | "deferred" | "latest";
+    // How far ahead of a moving device what3words squares are looked up, as
+    // the time it takes to get there, in milliseconds. Defaults to 0 (off).
+    w3wPrefetchHorizon?: number;
+    // The most prefetches made in a minute. Defaults to 30.
+    w3wPrefetchPerMinute?: number;
+    // The enrichers run on each stored location. Defaults to ["w3w"].
+    enrichers?: ("w3w" | "geocoder" | "stub" | "none")[];
+    // The longest a location waits for any one enricher, in milliseconds.
+    // Defaults to each enricher's own limit: 10000 for "w3w", 5000 for
+    // "geocoder" and 1000 for "stub".
+    enrichmentTimeout?: number;
+    // Where locations are stored. Defaults to "firestore".
+    sink?: "firestore" | "http" | "file" | "memory";
+    // The endpoint locations are posted to by the "http" sink.
+    sinkUrl?: string;
+    // Extra headers sent by the "http" sink. They are not saved: locations
+    // left over from a previous run are sent with the headers most recently
+    // given for the same "sinkUrl".
+    sinkHeaders?: {[name: string]: string};
+    // A delay added to every write by the "memory" sink, in milliseconds.
+    // Defaults to 0.
+    sinkLatency?: number;
+    // The number of locations written at once. Defaults to 1.
+    batchSize?: number;
+    // The longest a location waits for its batch to fill, in milliseconds.
+    // Defaults to 0 (until the batch is full).
+    batchInterval?: number;
+    // Whether a session's locations are kept in one document ("array") or in
+    // a document per chunk ("chunks"). Defaults to "array".
+    storage?: "array" | "chunks";
+    // Whether locations are stored as maps or as encoded segments, which are
+    // decoded by "track.js". Defaults to "map".
+    format?: "map" | "encoded";
+    // The time covered by a chunk, in milliseconds. Defaults to 600000.
+    chunkDuration?: number;
+    // The most locations in a chunk. Defaults to 500.
+    chunkSize?: number;
+    // The least distance between stored locations, in metres, unless the
+    // heading has changed. Defaults to 0.
+    persistDistance?: number;
+    // The least time between stored locations, in milliseconds. Defaults
+    // to 0.
+    persistInterval?: number;
+    // Locations less accurate than this, in metres, are not stored. Defaults
+    // to 0 (any accuracy).
+    persistMaxAccuracy?: number;
+    // A change of heading, in degrees, which stores a location however
+    // close it is to the last. Defaults to 0 (off).
+    persistHeadingChange?: number;
+    // A pause between locations longer than this, in milliseconds, is logged
+    // as a gap. Defaults to 120000.
+    gapThreshold?: number;
+    // How often the session's summary is logged, in milliseconds. Defaults
+    // to 300000.
+    summaryInterval?: number;
+    // The most locations waiting to be written. Defaults to 1000.
+    queueCapacity?: number;
+    // Which locations are dropped once the queue is full. Defaults to
+    // "dropOldest".
+    overflow?: "dropOldest" | "collapse" | "decimate";
+    // The most of the session's writes in flight at once. Defaults to 4.
+    maxInFlight?: number;
+    // The time between locations, in milliseconds. Defaults to 1000.
+    interval?: number;
+    // The least time between locations, in milliseconds, when they are
+    // available sooner. Defaults to 0 (the same as "interval").
+    fastestInterval?: number;
+    // The longest locations are held back to be delivered together, in
+    // milliseconds. Defaults to 1000.
+    maxWaitTime?: number;
+    // Trades accuracy for power. Defaults to "high".
+    priority?: "high" | "balanced" | "low" | "passive";
+    // The oldest a first, cached location may be, in milliseconds. Defaults
+    // to 0 (any age).
+    maxUpdateAge?: number;
+    // Whether the interval and distance filter follow the device's speed.
+    // Defaults to false.
+    adaptive?: boolean;
+    // How far, in metres, the device may wander and still be stationary.
+    // Defaults to 0 (never paused).
+    stationaryRadius?: number;
+    // How long the device must stay within the radius to be stationary, in
+    // milliseconds. Defaults to 300000.
+    stationaryWindow?: number;
+    // Whether the callback receives each update's locations together, as a
+    // LocationBatch. Defaults to false.
+    batch?: boolean;
 }
 
 export interface Location {
@@ -20,11 +127,84 @@ export interface Location {
     time: number | null;
 }
 
+export interface LocationBatch {
+    locations: Location[];
+}
+
+export interface W3wStats {
+    breakerState: "closed" | "open" | "half-open";
+    breakerTrips: number;
+    consecutiveFailures: number;
+    rateLimited: number;
+    cacheHits: number;
+    cacheMisses: number;
+    lookups: number;
+    coalesced: number;
+    prefetched: number;
+    prefetchHits: number;
+    prefetchWasted: number;
+    queueDepth: number;
+    rejected: number;
+}
+
+export interface EnricherStats {
+    calls: number;
+    busy: number;
+    timeouts: number;
+    averageMillis: number;
+}
+
+export interface UploadStats {
+    flushes: number;
+    written: number;
+    failures: number;
+    retries: number;
+    lastFlushSize: number;
+    lastFlushMillis: number;
+    inFlight: number;
+    queueDepth: number;
+    queueHighWater: number;
+    dropped: number;
+    outboxPending: number;
+    outboxAppended: number;
+    outboxSyncs: number;
+    outboxReplayed: number;
+}
+
+export interface PersistenceStats {
+    accepted?: number;
+    accuracy?: number;
+    duplicate?: number;
+    interval?: number;
+    distance?: number;
+}
+
+export interface MotionStats {
+    stationary?: number;
+    motion?: number;
+    exit?: number;
+}
+
+export interface MotionChange {
+    id: string;
+    stationary: boolean;
+    trigger: "stationary" | "motion" | "exit";
+}
+
 export interface CallbackError extends Error {
     code?: string;
 }
 
 export interface BackgroundGeolocationPlugin {
+    // Android only. On iOS, "batch" is ignored, so the callback is given one
+    // Location at a time.
+    addWatcher(
+        options: WatcherOptions & {batch: true},
+        callback: (
+            batch?: LocationBatch,
+            error?: CallbackError
+        ) => void
+    ): Promise<string>;
     addWatcher(
         options: WatcherOptions,
         callback: (
@@ -36,4 +216,15 @@ export interface BackgroundGeolocationPlugin {
         id: string
     }): Promise<void>;
     openSettings(): Promise<void>;
+    // The methods and event below are Android only. On iOS, the methods
+    // reject as unimplemented and the event is never sent.
+    getW3wStats(): Promise<W3wStats>;
+    getEnrichmentStats(): Promise<{[enricher: string]: EnricherStats}>;
+    getUploadStats(): Promise<UploadStats>;
+    getPersistenceStats(): Promise<PersistenceStats>;
+    getMotionStats(): Promise<MotionStats>;
+    addListener(
+        eventName: "motionChange",
+        listenerFunc: (change: MotionChange) => void
+    ): Promise<PluginListenerHandle> & PluginListenerHandle;
 }
@@ -0,0 +1,17 @@
+export interface TrackSegment {
+    t: number;
+    p: string;
+    w: string[];
+    a: string[];
+}
+
+export interface TrackLocation {
+    latitude: number;
+    longitude: number;
+    time: number;
+    w3w: string;
+    address: string;
+}
+
+export function decodeSegment(segment: TrackSegment): TrackLocation[];
+export function decodeSegments(segments: TrackSegment[]): TrackLocation[];
@@ -0,0 +1,60 @@
+// Decodes the track segments written by the "encoded" format back into
+// locations. See TrackEncoder.java for a description of the format.
+
+function readValue(encoded, position) {
+    // Bitwise operators truncate to 32 bits, so plain arithmetic is used.
+    let result = 0;
+    let factor = 1;
+    let chunk;
+    do {
+        chunk = encoded.charCodeAt(position.index) - 63;
+        position.index += 1;
+        result += (chunk % 32) * factor;
+        factor *= 32;
+    } while (chunk >= 32);
+    return (
+        result % 2 === 1
+        ? -(result + 1) / 2
+        : result / 2
+    );
+}
+
+export function decodeSegment(segment) {
+    const locations = [];
+    const position = {index: 0};
+    let latitude = 0;
+    let longitude = 0;
+    let time = segment.t;
+    let words = null;
+    let address = null;
+    while (position.index < segment.p.length) {
+        latitude += readValue(segment.p, position);
+        longitude += readValue(segment.p, position);
+        time += readValue(segment.p, position);
+        const i = locations.length;
+        words = segment.w[i] || words;
+        address = segment.a[i] || address;
+        locations.push({
+            latitude: latitude / 1e6,
+            longitude: longitude / 1e6,
+            time,
+            w3w: words,
+            address
+        });
+    }
+    return locations;
+}
+
+// Locations replayed after a crash may have been written twice, in different
+// segments, so the locations are put in time order and repeats are dropped.
+export function decodeSegments(segments) {
+    const all = segments.map(decodeSegment).reduce(function (all, locations) {
+        return all.concat(locations);
+    }, []);
+    all.sort(function (a, b) {
+        return a.time - b.time;
+    });
+    return all.filter(function (location, i) {
+        return i === 0 || location.time !== all[i - 1].time;
+    });
+}
@@ -0,0 +1,52 @@
+import assert from "node:assert/strict";
+import test from "node:test";
+import {decodeSegment, decodeSegments} from "./track.js";
+
+// Written by TrackEncoder, in TrackEncoderTest.matchesTrackJs.
+const segment = {
+    t: 1700000000000,
+    p: "}sqgaB`{|J?[m@o}@rBnEg{Cdb`zaDelkx_HgdfxcD",
+    w: ["filled.count.soap", "", "index.home.raft", "dress.shade.tiny"],
+    a: ["Bayswater", "", "", "Sydney"]
+};
+
+test("decodes a segment written by TrackEncoder", function () {
+    assert.deepEqual(decodeSegment(segment), [
+        {
+            latitude: 51.520847,
+            longitude: -0.195521,
+            time: 1700000000000,
+            w3w: "filled.count.soap",
+            address: "Bayswater"
+        },
+        {
+            latitude: 51.520861,
+            longitude: -0.195498,
+            time: 1700000001000,
+            w3w: "filled.count.soap",
+            address: "Bayswater"
+        },
+        {
+            latitude: 51.520803,
+            longitude: -0.195602,
+            time: 1700000003500,
+            w3w: "index.home.raft",
+            address: "Bayswater"
+        },
+        {
+            latitude: -33.856784,
+            longitude: 151.215297,
+            time: 1700086400000,
+            w3w: "dress.shade.tiny",
+            address: "Sydney"
+        }
+    ]);
+});
+
+test("drops the repeats of a replayed segment", function () {
+    const locations = decodeSegments([segment, segment]);
+    assert.equal(locations.length, 4);
+    assert.deepEqual(locations.map(function (location) {
+        return location.time;
+    }), [1700000000000, 1700000001000, 1700000003500, 1700086400000]);
+});